@@ -2,18 +2,71 @@ package ch.heig.dai.lab.udp.auditor;
 
 import com.google.gson.*;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Type;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -26,28 +79,106 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  */
 public class Main {
     /**
-     * The JSON serializer/deserializer. Created using a builder to enable pretty printing custom deserialization.
+     * The JSON serializer for line-delimited output, where each document must fit on a single line.
+     */
+    private static final Gson compactGson = new Gson();
+
+    /**
+     * The musicians found by the auditor, indexed by UUID so that a heartbeat updates its entry in a single operation.
+     */
+    static final Registry musicians = switch (config("AUDITOR_REGISTRY", "map")) {
+        case "map" -> new MapRegistry();
+        case "primitive" -> new PrimitiveRegistry((int) config("AUDITOR_REGISTRY_CAPACITY", 1 << 16));
+        default -> throw new IllegalArgumentException("Unknown registry, expected map or primitive");
+    };
+
+    /**
+     * The timing wheel that tells the watcher which musicians are due to expire.
+     */
+    private static final ExpiryWheel expiries = new ExpiryWheel(RunnableWatcher.THREAD_TIMEOUT, System.currentTimeMillis());
+
+    /**
+     * The serialized list of musicians served to TCP clients.
+     */
+    private static final SnapshotCache snapshots = new SnapshotCache(config("AUDITOR_SNAPSHOT_MAX_AGE", 100));
+
+    /**
+     * The log of musicians that joined, changed instrument or expired, from which deltas are computed.
+     */
+    private static final ChangeLog changes = new ChangeLog((int) config("AUDITOR_CHANGE_LOG_SIZE", 65536));
+
+    /**
+     * The counters of the listener.
      */
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().registerTypeAdapter(Musician.class, new MusicianDeserializer()).create();
+    private static final ListenerStats listenerStats = new ListenerStats();
 
     /**
-     * The list of musicians found by the auditor.
+     * The counters and latencies exposed to Prometheus.
      */
-    private static final Set<Musician> musicians = ConcurrentHashMap.newKeySet();
+    private static final Metrics metrics = new Metrics();
+
+    /**
+     * The log of the events that can occur in bursts, written by a background thread.
+     */
+    private static final AsyncLog log = new AsyncLog((int) config("AUDITOR_LOG_RATE", 20), (int) config("AUDITOR_LOG_QUEUE", 1024));
+
+    /**
+     * The directory of the journal segments, or empty to disable the journal.
+     */
+    private static final String JOURNAL_DIRECTORY = config("AUDITOR_JOURNAL_DIR", "");
+
+    /**
+     * The journal of musician activity, or null if it is disabled. Its settings are read here rather than in
+     * {@link Journal}, so that initializing either class first never depends on the other.
+     */
+    static final Journal journal = JOURNAL_DIRECTORY.isEmpty() ? null : new Journal(
+            Path.of(JOURNAL_DIRECTORY),
+            (int) config("AUDITOR_JOURNAL_QUEUE", 1 << 16),
+            config("AUDITOR_JOURNAL_SEGMENT_SIZE", 64 << 20), // 64 MiB
+            config("AUDITOR_JOURNAL_SEGMENT_AGE", 3_600_000)); // 1 hour
 
     /**
      * The main entry point of the program.
      */
     public static void main(String[] args) {
         System.out.println("Starting auditor");
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(listenerStats, new ObjectName(ListenerStats.OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Error registering listener statistics: " + e.getMessage());
+        }
         final var executor = Executors.newVirtualThreadPerTaskExecutor();
         final var scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
         // Using a try-with-resources block would shut down the scheduledExecutor because it doesn't run a while loop.
         // See https://stackoverflow.com/q/52843618/ for more information.
         try {
-            executor.execute(new RunnableListener());
-            executor.execute(new RunnableServer());
+            if (RegistryFile.PERIOD > 0) { // Before the listener starts, so that heartbeats are newer than restored entries.
+                new RegistryFile(RegistryFile.PATH).restore();
+            }
+            switch (config("AUDITOR_LISTENER_MODE", "socket")) {
+                case "socket" -> executor.execute(new RunnableListener());
+                case "channel" -> executor.execute(new RunnableChannelListener((int) config("AUDITOR_LISTENER_WORKERS", 1)));
+                default -> throw new IllegalArgumentException("Unknown listener mode, expected socket or channel");
+            }
+            switch (config("AUDITOR_SERVER_MODE", "blocking")) {
+                case "blocking" -> executor.execute(new RunnableServer());
+                case "selector" -> new Thread(new RunnableSelectorServer((int) config("AUDITOR_SELECTOR_LOOPS", Runtime.getRuntime().availableProcessors()))).start();
+                default -> throw new IllegalArgumentException("Unknown server mode, expected blocking or selector");
+            }
+            executor.execute(new RunnableDeltaServer());
+            executor.execute(new RunnableSubscriptionServer());
+            executor.execute(new RunnableMetricsServer());
+            if (journal != null) {
+                executor.execute(new RunnableQueryServer(journal.directory));
+            }
             scheduledExecutor.scheduleAtFixedRate(new RunnableWatcher(), 0, RunnableWatcher.THREAD_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (RegistryFile.PERIOD > 0) {
+                final var registryFile = new RegistryFile(RegistryFile.PATH);
+                // A thread of its own, so that saving a large list never delays the watcher ticks.
+                final var saver = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("auditor-registry-file").daemon().factory());
+                saver.scheduleWithFixedDelay(registryFile, RegistryFile.PERIOD, RegistryFile.PERIOD, TimeUnit.MILLISECONDS);
+                Runtime.getRuntime().addShutdownHook(new Thread(registryFile)); // Save the latest state on docker stop.
+            }
         } catch (Exception e) {
             System.err.println(e.getMessage());
         } finally {
@@ -56,8 +187,34 @@ public class Main {
         }
     }
 
+    /**
+     * Read a numeric setting from the environment, which is how settings are passed to a docker container.
+     *
+     * @param name         The name of the environment variable.
+     * @param defaultValue The value to use when the variable is not set.
+     * @return The value of the setting.
+     * @throws NumberFormatException If the variable is not a number.
+     */
+    static long config(String name, long defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Read a textual setting from the environment.
+     *
+     * @param name         The name of the environment variable.
+     * @param defaultValue The value to use when the variable is not set.
+     * @return The value of the setting.
+     */
+    static String config(String name, String defaultValue) {
+        final String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
     /**
      * The instrument that a musician plays. The values are in lowercase because they are used as keys in (de)serialization.
+     * The order must match the musician's, as the binary format sends the ordinal.
      */
     private enum Instrument {
         piano, trumpet, flute, violin, drum
@@ -84,9 +241,25 @@ public class Main {
          * @param uuid         The UUID of the musician.
          * @param sound        The sound that the musician makes, which determines the instrument.
          * @param lastActivity The last time the musician was active.
+         * @throws IllegalArgumentException If the sound matches no instrument.
          */
         public Musician(UUID uuid, String sound, long lastActivity) {
-            this(uuid, sounds.get(sound), lastActivity);
+            this(uuid, instrumentOf(sound), lastActivity);
+        }
+
+        /**
+         * Find the instrument that makes a sound.
+         *
+         * @param sound The sound.
+         * @return The instrument.
+         * @throws IllegalArgumentException If the sound matches no instrument.
+         */
+        private static Instrument instrumentOf(String sound) {
+            final Instrument instrument = sounds.get(sound);
+            if (instrument == null) {
+                throw new IllegalArgumentException("Unknown sound " + sound);
+            }
+            return instrument;
         }
 
         /**
@@ -120,157 +293,3599 @@ public class Main {
     }
 
     /**
-     * A thread that listens for UDP messages from musicians and adds them to the musicians list.
+     * The list of musicians. Every operation on a musician is atomic, and a musician is never missing from a reader's
+     * view while it is being updated.
      */
-    private static class RunnableListener implements Runnable {
+    interface Registry {
         /**
-         * The address on which the listener listens.
+         * Add a musician, or replace it if this heartbeat is at least as recent as the known one. Heartbeats that
+         * arrive out of order therefore can't move the last activity backwards.
+         *
+         * @param musician The musician that sent a heartbeat.
+         * @return joined if the musician is new, updated if it changed instrument, null otherwise.
          */
-        private static final String ADDRESS = "239.255.22.5";
+        ChangeLog.Type upsert(Musician musician);
 
         /**
-         * The port on which the listener listens.
+         * Add or refresh a musician from its decoded fields. Implementations that don't store records override this
+         * to avoid creating one.
+         *
+         * @see #upsert(Musician)
          */
-        private static final int PORT = 9904;
+        default ChangeLog.Type upsert(long msb, long lsb, Instrument instrument, long lastActivity) {
+            return upsert(new Musician(new UUID(msb, lsb), instrument, lastActivity));
+        }
 
         /**
-         * The maximum size of a UDP datagram.
+         * Remove a musician if it has been inactive for too long.
+         *
+         * @param uuid      The UUID of the musician.
+         * @param now       The current time in milliseconds.
+         * @param timeout   The maximum inactivity in milliseconds.
+         * @param onExpired Called with the musician if it was removed.
+         * @return The last activity of the musician if it is still active, or -1 if it was removed or is unknown.
          */
-        private static final int DATAGRAM_SIZE = 1024;
+        long expire(UUID uuid, long now, long timeout, Consumer<Musician> onExpired);
 
         /**
-         * The default network interface to listen on. Always "eth0" in docker.
+         * Remove a musician from the bits of its UUID. Implementations that don't store UUID objects override this to
+         * avoid creating one.
+         *
+         * @see #expire(UUID, long, long, Consumer)
          */
-        private static final String NETWORK_INTERFACE = "eth0";
+        default long expire(long msb, long lsb, long now, long timeout, Consumer<Musician> onExpired) {
+            return expire(new UUID(msb, lsb), now, timeout, onExpired);
+        }
 
         /**
-         * Listen for UDP messages from musicians and add them to the list.
+         * @param uuid The UUID of the musician.
+         * @return The musician, or null if it is unknown.
          */
-        @Override
-        public void run() {
-            System.out.println("Starting auditor listener on UDP port " + PORT);
+        Musician get(UUID uuid);
 
-            final InetSocketAddress group_address = new InetSocketAddress(ADDRESS, PORT);
-            MulticastSocket socket = null;
-            NetworkInterface netif = null;
-            try {
-                netif = NetworkInterface.getByName(NETWORK_INTERFACE);
-                socket = new MulticastSocket(PORT);
-                socket.joinGroup(group_address, netif);
+        /**
+         * @return A copy of the musicians.
+         */
+        List<Musician> values();
 
-                byte[] buffer = new byte[DATAGRAM_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                while (true) {
-                    socket.receive(packet);
-                    String message = new String(packet.getData(), 0, packet.getLength(), UTF_8);
-                    Musician musician = gson.fromJson(message, Musician.class);
+        /**
+         * Call an action for each musician without copying the whole list, so that the action may be slow, such as
+         * writing to a socket. Musicians that change meanwhile may or may not be seen.
+         *
+         * @param action The action to call.
+         */
+        void forEach(Consumer<Musician> action);
 
-                    if (!Main.musicians.add(musician)) {
-                        Main.musicians.remove(musician);
-                        Main.musicians.add(musician);
-                    } else {
-                        System.out.println("Auditor listener: found " + musician); // Log only on initial insertion.
-                    }
+        /**
+         * Receives the fields of a musician.
+         */
+        interface Fields {
+            void accept(long msb, long lsb, Instrument instrument, long lastActivity);
+        }
+
+        /**
+         * Call an action with the fields of each musician, like {@link #forEach(Consumer)}. Implementations that don't
+         * store records override this so that no record or UUID is created.
+         *
+         * @param action The action to call.
+         */
+        default void forEachFields(Fields action) {
+            forEach(musician -> action.accept(musician.uuid().getMostSignificantBits(), musician.uuid().getLeastSignificantBits(), musician.instrument(), musician.lastActivity()));
+        }
+
+        /**
+         * @return The number of musicians.
+         */
+        int size();
+
+        /**
+         * Remove every musician.
+         */
+        void clear();
+    }
+
+    /**
+     * A registry backed by a concurrent map of musician records.
+     */
+    static class MapRegistry implements Registry {
+        private final ConcurrentHashMap<UUID, Musician> map = new ConcurrentHashMap<>();
+
+        @Override
+        public ChangeLog.Type upsert(Musician musician) {
+            // Replace the value in place so that the musician never disappears from concurrent readers.
+            final ChangeLog.Type[] change = {null};
+            map.compute(musician.uuid(), (uuid, previous) -> {
+                if (previous == null) {
+                    change[0] = ChangeLog.Type.joined;
+                    return musician;
                 }
-            } catch (Exception e) { // Catch all exceptions to avoid nested catch statements.
-                System.err.println(e.getMessage());
-            } finally { // Cleanup manually because try-with-resources doesn't work easily with virtual threads.
-                if (socket != null) {
-                    try {
-                        socket.leaveGroup(group_address, netif);
-                        socket.close();
-                    } catch (IOException e) {
-                        System.err.println(e.getMessage());
-                    }
+                listenerStats.heartbeat(previous.lastActivity(), musician.lastActivity());
+                if (musician.lastActivity() < previous.lastActivity()) {
+                    return previous;
+                } else if (musician.instrument() != previous.instrument()) {
+                    change[0] = ChangeLog.Type.updated;
+                }
+                return musician;
+            });
+            return change[0];
+        }
+
+        @Override
+        public long expire(UUID uuid, long now, long timeout, Consumer<Musician> onExpired) {
+            final Musician[] expired = {null};
+            final Musician musician = map.computeIfPresent(uuid, (k, m) -> {
+                if (now - m.lastActivity() >= timeout) {
+                    expired[0] = m;
+                    return null;
                 }
+                return m;
+            });
+            if (expired[0] != null) {
+                onExpired.accept(expired[0]);
             }
+            return musician == null ? -1 : musician.lastActivity();
+        }
+
+        @Override
+        public Musician get(UUID uuid) {
+            return map.get(uuid);
+        }
+
+        @Override
+        public List<Musician> values() {
+            return new ArrayList<>(map.values());
+        }
+
+        @Override
+        public void forEach(Consumer<Musician> action) {
+            map.values().forEach(action);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
         }
     }
 
     /**
-     * A thread that removes inactive musicians from the list.
+     * A registry that stores musicians in primitive arrays instead of objects: two longs for the UUID, a long for the
+     * last activity and a byte for the instrument, about 50 bytes per musician with the free slots. The expiry wheel
+     * also keeps its deadlines in arrays, so a musician costs no object for the garbage collector to trace until it is
+     * read or expired. The arrays are split into segments, each an open-addressing hash table with linear
+     * probing behind its own lock, so that concurrent heartbeats rarely contend. Records are only created when the
+     * musicians are read, which happens far less often than heartbeats.
      */
-    private static class RunnableWatcher implements Runnable {
+    static class PrimitiveRegistry implements Registry {
         /**
-         * The time between each check of the list.
+         * The number of segments, a power of two.
          */
-        public static final long THREAD_TIMEOUT = 1000; // 1 seconds
+        private static final int SEGMENTS = 64;
 
         /**
-         * The maximum time a musician can be inactive before being removed from the list.
+         * The marker of a free slot in the instrument array.
          */
-        private static final long INACTIVE_TIMEOUT = 5000; // 5 seconds
+        private static final byte FREE = Byte.MIN_VALUE;
 
         /**
-         * Create a new watcher, used to log when the thread first starts.
+         * The instruments indexed by ordinal.
          */
-        private RunnableWatcher() {
-            System.out.println("Starting auditor watcher");
+        private static final Instrument[] INSTRUMENTS = Instrument.values();
+
+        private final Segment[] segments = new Segment[SEGMENTS];
+
+        /**
+         * Create a new primitive registry.
+         *
+         * @param capacity The number of musicians expected, to size the tables. They grow as needed.
+         */
+        PrimitiveRegistry(int capacity) {
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments[i] = new Segment(Math.max(16, capacity / SEGMENTS * 2));
+            }
         }
 
         /**
-         * Remove inactive musicians from the list. Note: this could've been a lambda expression, but it's cleaner to
-         * factor it out into a separate class.
+         * Mix the bits of a UUID into a hash. The UUIDs are random, but the version bits are not.
          */
+        private static long hash(long msb, long lsb) {
+            long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+            h ^= h >>> 32;
+            h *= 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 29);
+        }
+
+        private Segment segment(long hash) {
+            return segments[(int) (hash >>> 58) & (SEGMENTS - 1)];
+        }
+
         @Override
-        public void run() {
-            if (musicians.removeIf(m -> System.currentTimeMillis() - m.lastActivity() >= INACTIVE_TIMEOUT)) {
-                System.out.println("Auditor watcher: removed inactive musicians");
+        public ChangeLog.Type upsert(Musician musician) {
+            return upsert(musician.uuid().getMostSignificantBits(), musician.uuid().getLeastSignificantBits(), musician.instrument(), musician.lastActivity());
+        }
+
+        /**
+         * Add or refresh a musician without a record or UUID object.
+         *
+         * @see Registry#upsert(Musician)
+         */
+        @Override
+        public ChangeLog.Type upsert(long msb, long lsb, Instrument instrument, long lastActivity) {
+            final long hash = hash(msb, lsb);
+            return segment(hash).upsert(hash, msb, lsb, (byte) instrument.ordinal(), lastActivity);
+        }
+
+        @Override
+        public long expire(UUID uuid, long now, long timeout, Consumer<Musician> onExpired) {
+            return expire(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), now, timeout, onExpired);
+        }
+
+        /**
+         * Remove a musician without a UUID object. A record is only created if the musician is removed.
+         *
+         * @see Registry#expire(UUID, long, long, Consumer)
+         */
+        @Override
+        public long expire(long msb, long lsb, long now, long timeout, Consumer<Musician> onExpired) {
+            final long hash = hash(msb, lsb);
+            final Segment segment = segment(hash);
+            Musician expired = null;
+            long lastActivity = -1;
+            segment.lock.lock();
+            try {
+                final int slot = segment.find(hash, msb, lsb);
+                if (slot >= 0) {
+                    if (now - segment.activities[slot] >= timeout) {
+                        expired = segment.musician(slot);
+                        segment.delete(slot);
+                    } else {
+                        lastActivity = segment.activities[slot];
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            if (expired != null) {
+                onExpired.accept(expired);
             }
+            return lastActivity;
+        }
+
+        @Override
+        public Musician get(UUID uuid) {
+            final long msb = uuid.getMostSignificantBits();
+            final long lsb = uuid.getLeastSignificantBits();
+            final long hash = hash(msb, lsb);
+            final Segment segment = segment(hash);
+            segment.lock.lock();
+            try {
+                final int slot = segment.find(hash, msb, lsb);
+                return slot < 0 ? null : segment.musician(slot);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Musician> values() {
+            final var values = new ArrayList<Musician>(size());
+            for (final Segment segment : segments) {
+                segment.lock.lock();
+                try {
+                    for (int slot = 0; slot < segment.instruments.length; slot++) {
+                        if (segment.instruments[slot] != FREE) {
+                            values.add(segment.musician(slot));
+                        }
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+            return values;
         }
-    }
 
-    /**
-     * A thread that serves the list of musicians to clients.
-     */
-    private static class RunnableServer implements Runnable {
         /**
-         * The port on which the server listens.
+         * {@inheritDoc} Each segment is copied under its lock and the action is called once the lock is released, so
+         * a slow action never blocks the heartbeats. At most one segment is held in memory.
          */
-        private static final int PORT = 2205;
+        @Override
+        public void forEach(Consumer<Musician> action) {
+            final var values = new ArrayList<Musician>();
+            for (final Segment segment : segments) {
+                segment.lock.lock();
+                try {
+                    for (int slot = 0; slot < segment.instruments.length; slot++) {
+                        if (segment.instruments[slot] != FREE) {
+                            values.add(segment.musician(slot));
+                        }
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
+                values.forEach(action);
+                values.clear();
+            }
+        }
 
         /**
-         * Start the server on the given port and run the client handler on virtual threads.
+         * {@inheritDoc} Each segment is copied under its lock into arrays reused from one segment to the next, and the
+         * action is called once the lock is released.
          */
         @Override
-        public void run() {
-            System.out.println("Starting auditor server on TCP port " + PORT);
-            try (final var serverSocket = new ServerSocket(PORT)) {
-                while (true) {
-                    try {
-                        var socket = serverSocket.accept();
-                        try (socket; final var out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8))) {
-                            System.out.println("Auditor server: sending " + musicians.size() + " musicians to client");
-                            String response = gson.toJson(musicians);
-                            out.write(response);
-                            out.flush();
-                        } catch (IOException e) {
-                            System.err.println("Error writing to client socket: " + e.getMessage());
+        public void forEachFields(Fields action) {
+            long[] msbs = new long[0];
+            long[] lsbs = new long[0];
+            long[] activities = new long[0];
+            byte[] instruments = new byte[0];
+            for (final Segment segment : segments) {
+                int count = 0;
+                segment.lock.lock();
+                try {
+                    if (instruments.length < segment.size) {
+                        msbs = new long[segment.size];
+                        lsbs = new long[segment.size];
+                        activities = new long[segment.size];
+                        instruments = new byte[segment.size];
+                    }
+                    for (int slot = 0; slot < segment.instruments.length; slot++) {
+                        if (segment.instruments[slot] != FREE) {
+                            msbs[count] = segment.msbs[slot];
+                            lsbs[count] = segment.lsbs[slot];
+                            activities[count] = segment.activities[slot];
+                            instruments[count] = segment.instruments[slot];
+                            count++;
                         }
-                    } catch (IOException e) {
-                        System.err.println("Error opening client socket: " + e.getMessage());
                     }
+                } finally {
+                    segment.lock.unlock();
                 }
-            } catch (IOException e) {
-                System.err.println("Error opening server socket: " + e.getMessage());
+                for (int i = 0; i < count; i++) {
+                    action.accept(msbs[i], lsbs[i], INSTRUMENTS[instruments[i]], activities[i]);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (final Segment segment : segments) {
+                size += segment.size;
+            }
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            for (final Segment segment : segments) {
+                segment.lock.lock();
+                try {
+                    Arrays.fill(segment.instruments, FREE);
+                    segment.size = 0;
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * An open-addressing hash table with linear probing. Every access holds the lock.
+         */
+        private static class Segment {
+            private final ReentrantLock lock = new ReentrantLock();
+            private long[] msbs;
+            private long[] lsbs;
+            private long[] activities;
+            private byte[] instruments;
+            private volatile int size;
+
+            private Segment(int capacity) {
+                allocate(Integer.highestOneBit(capacity - 1) << 1);
+            }
+
+            private void allocate(int capacity) {
+                msbs = new long[capacity];
+                lsbs = new long[capacity];
+                activities = new long[capacity];
+                instruments = new byte[capacity];
+                Arrays.fill(instruments, FREE);
+            }
+
+            /**
+             * @return The slot of the musician, or -1 if it is unknown.
+             */
+            private int find(long hash, long msb, long lsb) {
+                final int mask = instruments.length - 1;
+                for (int slot = (int) hash & mask; instruments[slot] != FREE; slot = (slot + 1) & mask) {
+                    if (msbs[slot] == msb && lsbs[slot] == lsb) {
+                        return slot;
+                    }
+                }
+                return -1;
+            }
+
+            private ChangeLog.Type upsert(long hash, long msb, long lsb, byte instrument, long lastActivity) {
+                lock.lock();
+                try {
+                    final int mask = instruments.length - 1;
+                    int slot = (int) hash & mask;
+                    for (; instruments[slot] != FREE; slot = (slot + 1) & mask) {
+                        if (msbs[slot] == msb && lsbs[slot] == lsb) {
+                            listenerStats.heartbeat(activities[slot], lastActivity);
+                            if (lastActivity < activities[slot]) {
+                                return null;
+                            }
+                            activities[slot] = lastActivity;
+                            if (instruments[slot] != instrument) {
+                                instruments[slot] = instrument;
+                                return ChangeLog.Type.updated;
+                            }
+                            return null;
+                        }
+                    }
+                    msbs[slot] = msb;
+                    lsbs[slot] = lsb;
+                    activities[slot] = lastActivity;
+                    instruments[slot] = instrument;
+                    size++;
+                    if (size * 2 > instruments.length) { // Keep the load factor under one half for short probes.
+                        grow();
+                    }
+                    return ChangeLog.Type.joined;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Free a slot, shifting back the entries of the same probe sequence so that no tombstone is needed.
+             */
+            private void delete(int slot) {
+                final int mask = instruments.length - 1;
+                int free = slot;
+                for (int next = (free + 1) & mask; instruments[next] != FREE; next = (next + 1) & mask) {
+                    final int home = (int) hash(msbs[next], lsbs[next]) & mask;
+                    // Move the entry if its home isn't cyclically within (free, next].
+                    if (((next - home) & mask) >= ((next - free) & mask)) {
+                        msbs[free] = msbs[next];
+                        lsbs[free] = lsbs[next];
+                        activities[free] = activities[next];
+                        instruments[free] = instruments[next];
+                        free = next;
+                    }
+                }
+                instruments[free] = FREE;
+                size--;
+            }
+
+            private void grow() {
+                final long[] oldMsbs = msbs;
+                final long[] oldLsbs = lsbs;
+                final long[] oldActivities = activities;
+                final byte[] oldInstruments = instruments;
+                allocate(oldInstruments.length * 2);
+                final int mask = instruments.length - 1;
+                for (int i = 0; i < oldInstruments.length; i++) {
+                    if (oldInstruments[i] != FREE) {
+                        int slot = (int) hash(oldMsbs[i], oldLsbs[i]) & mask;
+                        while (instruments[slot] != FREE) {
+                            slot = (slot + 1) & mask;
+                        }
+                        msbs[slot] = oldMsbs[i];
+                        lsbs[slot] = oldLsbs[i];
+                        activities[slot] = oldActivities[i];
+                        instruments[slot] = oldInstruments[i];
+                    }
+                }
+            }
+
+            private Musician musician(int slot) {
+                return new Musician(new UUID(msbs[slot], lsbs[slot]), INSTRUMENTS[instruments[slot]], activities[slot]);
             }
         }
     }
 
     /**
-     * A deserializer for the Musician record.
+     * A thread that listens for UDP messages from musicians and adds them to the musicians list. Each datagram may be
+     * either JSON or binary encoded, so musicians using both formats can play together.
      */
-    static class MusicianDeserializer implements JsonDeserializer<Musician> {
+    static class RunnableListener implements Runnable {
         /**
-         * Deserialize a musician from a JSON element.
-         *
-         * @param jsonElement                The JSON element.
-         * @param type                       The type of the object.
-         * @param jsonDeserializationContext The context.
-         * @return A musician record.
-         * @throws JsonParseException If the JSON is invalid.
+         * The address on which the listener listens.
          */
-        @Override
+        private static final String ADDRESS = "239.255.22.5";
+
+        /**
+         * The port on which the listener listens.
+         */
+        private static final int PORT = 9904;
+
+        /**
+         * The maximum size of a UDP datagram.
+         */
+        private static final int DATAGRAM_SIZE = 1024;
+
+        /**
+         * The default network interface to listen on. Always "eth0" in docker.
+         */
+        private static final String NETWORK_INTERFACE = "eth0";
+
+        /**
+         * The size of the socket receive buffer, which absorbs bursts of datagrams. Zero keeps the system default.
+         */
+        static final int RECEIVE_BUFFER_SIZE = (int) config("AUDITOR_RECEIVE_BUFFER", 0);
+
+        /**
+         * The period at which musicians send heartbeats, used to detect lost datagrams.
+         */
+        private static final long HEARTBEAT_PERIOD = 1000; // 1 second
+
+        /**
+         * Listen for UDP messages from musicians and add them to the list.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor listener on UDP port " + PORT);
+
+            final InetSocketAddress group_address = new InetSocketAddress(ADDRESS, PORT);
+            MulticastSocket socket = null;
+            NetworkInterface netif = null;
+            try {
+                netif = NetworkInterface.getByName(NETWORK_INTERFACE);
+                socket = new MulticastSocket(PORT);
+                if (RECEIVE_BUFFER_SIZE > 0) {
+                    socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                }
+                listenerStats.receiveBufferSize = socket.getReceiveBufferSize();
+                System.out.println("Auditor listener: receive buffer is " + listenerStats.receiveBufferSize + " bytes");
+                socket.joinGroup(group_address, netif);
+
+                byte[] buffer = new byte[DATAGRAM_SIZE + 1]; // One extra byte to detect oversize datagrams.
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                MusicianDecoder.Decoded decoded = new MusicianDecoder.Decoded();
+                while (true) {
+                    socket.receive(packet);
+                    handle(packet.getData(), packet.getOffset(), packet.getLength(), decoded, System.nanoTime());
+                }
+            } catch (Exception e) { // Catch all exceptions to avoid nested catch statements.
+                System.err.println(e.getMessage());
+            } finally { // Cleanup manually because try-with-resources doesn't work easily with virtual threads.
+                if (socket != null) {
+                    try {
+                        socket.leaveGroup(group_address, netif);
+                        socket.close();
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Decode a datagram and update the list. Oversize and malformed datagrams are counted and skipped.
+         *
+         * @param data   The buffer that contains the datagram.
+         * @param offset The offset of the datagram in the buffer.
+         * @param length The length of the datagram, which may exceed the maximum size by one byte.
+         * @param into       The holder reused by the calling thread for the decoded fields.
+         * @param receivedAt The time at which the datagram was received, from {@link System#nanoTime()}.
+         */
+        static void handle(byte[] data, int offset, int length, MusicianDecoder.Decoded into, long receivedAt) {
+            listenerStats.received.increment();
+            if (length > DATAGRAM_SIZE) {
+                listenerStats.oversize.increment();
+                return;
+            }
+            try {
+                MusicianDecoder.decode(data, offset, length, into);
+            } catch (RuntimeException e) {
+                listenerStats.malformed.increment();
+                return;
+            }
+            update(into.msb, into.lsb, into.instrument, into.lastActivity);
+            metrics.datagramToVisible.record(System.nanoTime() - receivedAt);
+        }
+
+        /**
+         * Add a musician to the list from decoded fields, or update its last activity if it is already known; the
+         * registry counts the heartbeats missed since the previous one. The musician record is only created when the
+         * list changes, so that the heartbeats of known musicians allocate nothing with the primitive registry.
+         */
+        static void update(long msb, long lsb, Instrument instrument, long lastActivity) {
+            final ChangeLog.Type change = Main.musicians.upsert(msb, lsb, instrument, lastActivity);
+            Main.snapshots.invalidate();
+            if (Main.journal != null) {
+                Main.journal.append(change == ChangeLog.Type.joined ? Journal.Type.joined : Journal.Type.heartbeat, lastActivity, msb, lsb, instrument);
+            }
+            if (change != null) {
+                changed(change, new Musician(new UUID(msb, lsb), instrument, lastActivity));
+            }
+        }
+
+        /**
+         * Put back a musician saved by {@link RegistryFile}. It goes to the list, the change log and the expiry wheel
+         * like a new musician, but isn't journaled again, as the journal already has its activity, nor logged as joined.
+         *
+         * @see #update(long, long, Instrument, long)
+         */
+        static void restore(long msb, long lsb, Instrument instrument, long lastActivity) {
+            final ChangeLog.Type change = Main.musicians.upsert(msb, lsb, instrument, lastActivity);
+            Main.snapshots.invalidate();
+            if (change == ChangeLog.Type.joined) {
+                Main.changes.append(change, new Musician(new UUID(msb, lsb), instrument, lastActivity));
+                Main.expiries.schedule(msb, lsb, lastActivity + RunnableWatcher.INACTIVE_TIMEOUT);
+            }
+        }
+
+        /**
+         * Record a change of the list, and schedule the expiry of new musicians.
+         */
+        private static void changed(ChangeLog.Type change, Musician musician) {
+            Main.changes.append(change, musician);
+            if (change == ChangeLog.Type.joined) {
+                Main.expiries.schedule(musician.uuid().getMostSignificantBits(), musician.uuid().getLeastSignificantBits(), musician.lastActivity() + RunnableWatcher.INACTIVE_TIMEOUT);
+                log.event(AsyncLog.Event.joined, musician); // Log only on initial insertion.
+            }
+        }
+    }
+
+    /**
+     * An alternative to {@link RunnableListener} built on a non-blocking {@link DatagramChannel}. Datagrams are received
+     * into a reused direct buffer, and every datagram queued in the socket is drained each time the selector wakes up.
+     * With more than one worker, the receiving thread only copies datagrams into lock-free rings, and the workers decode
+     * them and update the list in parallel.
+     */
+    private static class RunnableChannelListener implements Runnable {
+        /**
+         * The number of datagrams each worker ring can hold.
+         */
+        private static final int RING_SIZE = 4096;
+
+        /**
+         * The number of threads that decode datagrams. One means that datagrams are decoded on the receiving thread.
+         */
+        private final int workers;
+
+        /**
+         * Create a new channel listener.
+         *
+         * @param workers The number of threads that decode datagrams.
+         */
+        private RunnableChannelListener(int workers) {
+            this.workers = Math.max(1, workers);
+        }
+
+        /**
+         * Listen for UDP messages from musicians and add them to the list.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor channel listener on UDP port " + RunnableListener.PORT + " with " + workers + " workers");
+
+            try (final var channel = DatagramChannel.open(StandardProtocolFamily.INET); final var selector = Selector.open()) {
+                final NetworkInterface netif = NetworkInterface.getByName(RunnableListener.NETWORK_INTERFACE);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (RunnableListener.RECEIVE_BUFFER_SIZE > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, RunnableListener.RECEIVE_BUFFER_SIZE);
+                }
+                listenerStats.receiveBufferSize = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+                System.out.println("Auditor listener: receive buffer is " + listenerStats.receiveBufferSize + " bytes");
+                channel.bind(new InetSocketAddress(RunnableListener.PORT));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netif);
+                channel.join(InetAddress.getByName(RunnableListener.ADDRESS), netif); // Dropped when the channel closes.
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+
+                if (workers == 1) {
+                    receive(channel, selector);
+                } else {
+                    dispatch(channel, selector);
+                }
+            } catch (Exception e) { // Catch all exceptions to avoid nested catch statements.
+                System.err.println(e.getMessage());
+            }
+        }
+
+        /**
+         * Receive and decode datagrams on the current thread.
+         */
+        private void receive(DatagramChannel channel, Selector selector) throws IOException {
+            // One extra byte to detect oversize datagrams.
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(RunnableListener.DATAGRAM_SIZE + 1);
+            final byte[] bytes = new byte[RunnableListener.DATAGRAM_SIZE + 1]; // The decoder works on arrays.
+            final MusicianDecoder.Decoded decoded = new MusicianDecoder.Decoded();
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                while (channel.receive(buffer) != null) {
+                    buffer.flip();
+                    final int length = buffer.remaining();
+                    buffer.get(bytes, 0, length);
+                    buffer.clear();
+                    RunnableListener.handle(bytes, 0, length, decoded, System.nanoTime());
+                }
+            }
+        }
+
+        /**
+         * Receive datagrams straight into the worker rings, spreading them round-robin. When every ring is full, the
+         * receiving thread waits and lets the socket buffer absorb the burst.
+         */
+        private void dispatch(DatagramChannel channel, Selector selector) throws IOException {
+            final DatagramRing[] rings = new DatagramRing[workers];
+            for (int i = 0; i < workers; i++) {
+                final DatagramRing ring = new DatagramRing(RING_SIZE, RunnableListener.DATAGRAM_SIZE + 1);
+                rings[i] = ring;
+                final Thread worker = new Thread(() -> decode(ring), "auditor-decoder-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+            int next = 0;
+            while (true) {
+                selector.select();
+                selector.selectedKeys().clear();
+                while (true) {
+                    ByteBuffer slot;
+                    while ((slot = rings[next].claim()) == null) {
+                        next = (next + 1) % workers;
+                        Thread.onSpinWait();
+                    }
+                    if (channel.receive(slot) == null) {
+                        break; // Drained, the claimed slot is reused next time.
+                    }
+                    slot.flip();
+                    rings[next].publish(System.nanoTime());
+                    next = (next + 1) % workers;
+                }
+            }
+        }
+
+        /**
+         * Decode the datagrams of a ring and update the list, forever.
+         */
+        private static void decode(DatagramRing ring) {
+            final MusicianDecoder.Decoded decoded = new MusicianDecoder.Decoded();
+            while (true) {
+                final ByteBuffer slot = ring.await();
+                try {
+                    RunnableListener.handle(slot.array(), slot.arrayOffset() + slot.position(), slot.remaining(), decoded, ring.receivedAt());
+                } finally {
+                    ring.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * A bounded single-producer single-consumer ring of datagram buffers. The buffers are allocated once, and the two
+     * sides only synchronize through their ordered counters, without locks. An idle consumer spins briefly, then parks
+     * until the producer publishes and unparks it, so that a quiet listener doesn't keep the workers awake.
+     */
+    static class DatagramRing {
+        /**
+         * The number of times an idle consumer checks the ring again before parking, about tens of microseconds.
+         */
+        private static final int SPINS = 1000;
+
+        /**
+         * The datagram buffers. The length is a power of two so that a counter maps to a slot with a mask.
+         */
+        private final ByteBuffer[] slots;
+
+        /**
+         * The time at which the datagram of each slot was received, from {@link System#nanoTime()}.
+         */
+        private final long[] receivedAt;
+
+        /**
+         * The mask that maps a counter to a slot.
+         */
+        private final int mask;
+
+        /**
+         * The number of datagrams consumed. Only written by the consumer.
+         */
+        private final AtomicLong head = new AtomicLong();
+
+        /**
+         * The number of datagrams published. Only written by the producer.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * The consumer while it is parked or about to park, or null.
+         */
+        private volatile Thread waiter;
+
+        /**
+         * Create a new ring.
+         *
+         * @param capacity     The number of datagrams the ring can hold, rounded up to a power of two.
+         * @param datagramSize The maximum size of a datagram.
+         */
+        DatagramRing(int capacity, int datagramSize) {
+            final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.slots = new ByteBuffer[size];
+            this.receivedAt = new long[size];
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                slots[i] = ByteBuffer.allocate(datagramSize);
+            }
+        }
+
+        /**
+         * Get the next free slot, cleared, to be filled by the producer.
+         *
+         * @return The slot, or null if the ring is full.
+         */
+        ByteBuffer claim() {
+            final long t = tail.get();
+            if (t - head.get() >= slots.length) {
+                return null;
+            }
+            return slots[(int) (t & mask)].clear();
+        }
+
+        /**
+         * Make the claimed slot visible to the consumer.
+         *
+         * @param time The time at which the datagram was received, from {@link System#nanoTime()}.
+         */
+        void publish(long time) {
+            final long t = tail.get();
+            receivedAt[(int) (t & mask)] = time; // Ordered before the slot is published by the volatile set.
+            // A volatile set rather than a lazy one, so that the read of the waiter below can't move before it: either
+            // the consumer sees the new slot when it checks again, or the producer sees the consumer and unparks it.
+            tail.set(t + 1);
+            final Thread consumer = waiter;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        /**
+         * Get the oldest published slot without consuming it.
+         *
+         * @return The slot, or null if the ring is empty.
+         */
+        ByteBuffer peek() {
+            final long h = head.get();
+            return h < tail.get() ? slots[(int) (h & mask)] : null;
+        }
+
+        /**
+         * Wait for the oldest published slot without consuming it. Only called by the consumer.
+         *
+         * @return The slot.
+         */
+        ByteBuffer await() {
+            ByteBuffer slot;
+            int spins = 0;
+            while ((slot = peek()) == null) {
+                if (spins++ < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    waiter = Thread.currentThread();
+                    if (peek() == null) { // Checked again, as the producer may have published before seeing the waiter.
+                        LockSupport.park(this);
+                    }
+                    waiter = null;
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * @return The time at which the datagram of the peeked slot was received, from {@link System#nanoTime()}.
+         */
+        long receivedAt() {
+            return receivedAt[(int) (head.get() & mask)];
+        }
+
+        /**
+         * Give the peeked slot back to the producer.
+         */
+        void release() {
+            head.lazySet(head.get() + 1);
+        }
+    }
+
+    /**
+     * The listener counters, exposed over JMX so that the receive buffer can be sized from real numbers.
+     */
+    public interface ListenerStatsMXBean {
+        /**
+         * @return The number of datagrams received.
+         */
+        long getReceived();
+
+        /**
+         * @return The number of datagrams dropped because they couldn't be decoded.
+         */
+        long getMalformed();
+
+        /**
+         * @return The number of datagrams dropped because they were larger than the maximum datagram size.
+         */
+        long getOversize();
+
+        /**
+         * @return The estimated number of datagrams lost before reaching the listener, from gaps between heartbeats.
+         */
+        long getGaps();
+
+        /**
+         * @return The effective size of the socket receive buffer, in bytes.
+         */
+        int getReceiveBufferSize();
+    }
+
+    /**
+     * The listener counters. Adders rather than atomics, as they are incremented by every receiving thread.
+     */
+    static class ListenerStats implements ListenerStatsMXBean {
+        /**
+         * The JMX name under which the counters are registered.
+         */
+        static final String OBJECT_NAME = "ch.heig.dai.lab.udp.auditor:type=Listener";
+
+        final LongAdder received = new LongAdder();
+        final LongAdder malformed = new LongAdder();
+        final LongAdder oversize = new LongAdder();
+        final LongAdder gaps = new LongAdder();
+        volatile int receiveBufferSize;
+
+        /**
+         * The latest last activity restored from the registry file. A previous activity up to this time wasn't
+         * received but restored, so the time until the next heartbeat is downtime rather than lost datagrams.
+         */
+        volatile long restoredUntil = Long.MIN_VALUE;
+
+        @Override
+        public long getReceived() {
+            return received.sum();
+        }
+
+        @Override
+        public long getMalformed() {
+            return malformed.sum();
+        }
+
+        @Override
+        public long getOversize() {
+            return oversize.sum();
+        }
+
+        @Override
+        public long getGaps() {
+            return gaps.sum();
+        }
+
+        @Override
+        public int getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        /**
+         * Count the datagrams lost between two heartbeats of a musician, from a gap of more than one heartbeat period.
+         *
+         * @param previous The last activity already known.
+         * @param current  The last activity in the new heartbeat.
+         */
+        void heartbeat(long previous, long current) {
+            if (previous <= restoredUntil) {
+                return;
+            }
+            final long period = RunnableListener.HEARTBEAT_PERIOD;
+            final long elapsed = current - previous;
+            if (elapsed > period * 3 / 2) {
+                gaps.add((elapsed + period / 2) / period - 1);
+            }
+        }
+    }
+
+    /**
+     * The counters and latencies of the auditor that are not already kept by {@link ListenerStats}. Rates such as the
+     * datagrams or connections per second are left to Prometheus, which computes them from the counters.
+     */
+    static class Metrics {
+        final LongAdder expired = new LongAdder();
+        final LongAdder connections = new LongAdder();
+
+        /**
+         * The time from the reception of a datagram until the musician is updated in the list.
+         */
+        final LatencyHistogram datagramToVisible = new LatencyHistogram();
+
+        /**
+         * The time from the acceptance of a connection on the list port until the response is written.
+         */
+        final LatencyHistogram responseWrite = new LatencyHistogram();
+
+        /**
+         * The time the watcher takes to expire inactive musicians.
+         */
+        final LatencyHistogram watcherTick = new LatencyHistogram();
+
+        /**
+         * The time taken to serialize the list into a snapshot.
+         */
+        final LatencyHistogram snapshotSerialize = new LatencyHistogram();
+
+        /**
+         * Render the metrics in the Prometheus text format.
+         *
+         * @return The metrics.
+         */
+        String scrape() {
+            final var out = new StringBuilder(4096);
+            counter(out, "auditor_datagrams_received_total", "Datagrams received by the listener.", listenerStats.received.sum());
+            counter(out, "auditor_datagrams_malformed_total", "Datagrams that couldn't be parsed.", listenerStats.malformed.sum());
+            counter(out, "auditor_datagrams_oversize_total", "Datagrams larger than the maximum size.", listenerStats.oversize.sum());
+            counter(out, "auditor_heartbeats_missed_total", "Heartbeats missed by known musicians.", listenerStats.gaps.sum());
+            gauge(out, "auditor_musicians", "Musicians in the list.", musicians.size());
+            counter(out, "auditor_watcher_expired_total", "Musicians removed for inactivity.", expired.sum());
+            histogram(out, "auditor_watcher_tick_seconds", "Duration of a watcher tick.", watcherTick);
+            counter(out, "auditor_connections_total", "Connections accepted on the list port.", connections.sum());
+            histogram(out, "auditor_snapshot_serialize_seconds", "Duration of a snapshot serialization.", snapshotSerialize);
+            histogram(out, "auditor_datagram_visible_seconds", "Time from the reception of a datagram until the list is updated.", datagramToVisible);
+            histogram(out, "auditor_response_write_seconds", "Time from the acceptance of a connection until the list is written.", responseWrite);
+            if (journal != null) {
+                counter(out, "auditor_journal_records_total", "Records written to the journal.", journal.written.sum());
+                counter(out, "auditor_journal_dropped_total", "Records dropped because the journal queue was full.", journal.dropped.sum());
+            }
+            return out.toString();
+        }
+
+        private static void counter(StringBuilder out, String name, String help, long value) {
+            header(out, name, help, "counter");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void gauge(StringBuilder out, String name, String help, long value) {
+            header(out, name, help, "gauge");
+            out.append(name).append(' ').append(value).append('\n');
+        }
+
+        /**
+         * Render a histogram in seconds, with a cumulative bucket at each power of two nanoseconds from about a
+         * microsecond to about 17 seconds, followed by its maximum as a gauge. The buckets are counters, so Prometheus
+         * computes the quantiles of any window from their rates rather than since the start.
+         */
+        private static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+            header(out, name, help, "histogram");
+            final long[] counts = histogram.counts();
+            long cumulative = 0;
+            int index = 0;
+            for (int exponent = 10; exponent <= 34; exponent++) {
+                // The buckets below the first one of 2^exponent hold exactly the values up to 2^exponent - 1.
+                for (final int end = LatencyHistogram.index(1L << exponent); index < end; index++) {
+                    cumulative += counts[index];
+                }
+                out.append(name).append("_bucket{le=\"").append(seconds((1L << exponent) - 1)).append("\"} ").append(cumulative).append('\n');
+            }
+            for (; index < counts.length; index++) {
+                cumulative += counts[index];
+            }
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(seconds(histogram.sum())).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+            header(out, name + "_max", "Maximum of " + name + ".", "gauge");
+            out.append(name).append("_max ").append(seconds(histogram.max())).append('\n');
+        }
+
+        private static void header(StringBuilder out, String name, String help, String type) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1e9;
+        }
+    }
+
+    /**
+     * A lock-free latency histogram in the style of HdrHistogram. Values are counted in buckets whose width doubles
+     * with each power of two, split into 16 linear sub-buckets, so that every value is known within about 6% whatever
+     * its magnitude, in a fixed array of 960 counters. Recording is a few arithmetic operations and an adder increment;
+     * adders rather than atomics, as every decoder thread records each datagram.
+     */
+    static class LatencyHistogram {
+        /**
+         * The number of bits of a value kept by its bucket.
+         */
+        private static final int SUB_BUCKET_BITS = 4;
+
+        /**
+         * The number of sub-buckets of each power of two.
+         */
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final LongAdder[] counts = new LongAdder[(Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        LatencyHistogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a value.
+         *
+         * @param nanos The value, in nanoseconds. Negative values are recorded as zero.
+         */
+        void record(long nanos) {
+            final long value = Math.max(0, nanos);
+            counts[index(value)].increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        /**
+         * @return The number of values recorded in each bucket, read once so that the cumulative counts are consistent.
+         */
+        long[] counts() {
+            final long[] snapshot = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                snapshot[i] = counts[i].sum();
+            }
+            return snapshot;
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * Get the bucket of a value. The values below 16 have a bucket each; above, the top five bits of a value
+         * select its bucket.
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        }
+    }
+
+    /**
+     * An asynchronous log for the events that can come in storms, such as musicians joining or clients polling. The
+     * calling thread only bumps a counter and, while the per-second budget of the event lasts, queues the event
+     * without formatting it. A background thread formats the queued lines and prints them in batches, and once a
+     * second prints how many events of each kind occurred when some of them were not logged, so that logging never
+     * throttles the listener or the server on the stdout lock.
+     */
+    static class AsyncLog {
+        /**
+         * The kinds of events, with the way a single event and a summary are printed.
+         */
+        enum Event {
+            joined("Auditor listener: found ", "", "Auditor listener: %d new musicians in the last second, %d not logged"),
+            served("Auditor server: sending ", " musicians to client", "Auditor server: %d clients served in the last second, %d not logged"),
+            streamed("Auditor server: streamed ", " musicians to client", "Auditor server: %d clients streamed in the last second, %d not logged");
+
+            private final String prefix;
+            private final String suffix;
+            private final String summary;
+
+            Event(String prefix, String suffix, String summary) {
+                this.prefix = prefix;
+                this.suffix = suffix;
+                this.summary = summary;
+            }
+        }
+
+        /**
+         * A queued line, formatted by the background thread.
+         */
+        private record Line(String prefix, Object detail, String suffix) {
+        }
+
+        /**
+         * The counters of an event kind.
+         *
+         * @param count  The events since the last summary.
+         * @param logged The events queued since the last summary.
+         * @param budget The events that may still be queued until the next summary.
+         */
+        private record Counters(LongAdder count, LongAdder logged, AtomicInteger budget) {
+        }
+
+        /**
+         * The time between two summaries.
+         */
+        private static final long SUMMARY_PERIOD = TimeUnit.SECONDS.toNanos(1);
+
+        /**
+         * The number of events of each kind logged per second.
+         */
+        private final int rate;
+
+        /**
+         * The lines waiting to be printed. Lines that don't fit are dropped and show up in the summaries.
+         */
+        private final BlockingQueue<Line> queue;
+
+        /**
+         * The counters of each event kind, indexed by ordinal.
+         */
+        private final Counters[] counters = new Counters[Event.values().length];
+
+        /**
+         * Create a new log and start its background thread.
+         *
+         * @param rate     The number of events of each kind logged per second.
+         * @param capacity The number of lines that can wait to be printed.
+         */
+        AsyncLog(int rate, int capacity) {
+            this.rate = rate;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = new Counters(new LongAdder(), new LongAdder(), new AtomicInteger(rate));
+            }
+            final Thread writer = new Thread(this::write, "auditor-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Log an event, unless its budget for the current second is spent.
+         *
+         * @param event  The kind of event.
+         * @param detail The detail printed with the event, only converted to a string by the background thread.
+         */
+        void event(Event event, Object detail) {
+            final Counters counters = this.counters[event.ordinal()];
+            counters.count().increment();
+            if (counters.budget().get() > 0 && counters.budget().getAndDecrement() > 0 && queue.offer(new Line(event.prefix, detail, event.suffix))) {
+                counters.logged().increment();
+            }
+        }
+
+        /**
+         * Print the queued lines in batches and the summaries once a second, forever.
+         */
+        private void write() {
+            final var batch = new ArrayList<Line>();
+            final var out = new StringBuilder();
+            long nextSummary = System.nanoTime() + SUMMARY_PERIOD;
+            while (true) {
+                try {
+                    final Line first = queue.poll(Math.max(0, nextSummary - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (final Line line : batch) {
+                    out.append(line.prefix()).append(line.detail()).append(line.suffix()).append('\n');
+                }
+                batch.clear();
+                if (System.nanoTime() - nextSummary >= 0) {
+                    summarize(out);
+                    nextSummary += SUMMARY_PERIOD;
+                }
+                if (!out.isEmpty()) {
+                    System.out.print(out); // A single write, and a single lock of stdout, per batch.
+                    out.setLength(0);
+                }
+            }
+        }
+
+        /**
+         * Append a summary of the event kinds that were not all logged in the last second, and renew the budgets.
+         */
+        private void summarize(StringBuilder out) {
+            for (final Event event : Event.values()) {
+                final Counters counters = this.counters[event.ordinal()];
+                final long count = counters.count().sumThenReset();
+                final long logged = counters.logged().sumThenReset();
+                counters.budget().set(rate);
+                if (count > logged) {
+                    out.append(String.format(event.summary, count, count - logged)).append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread that removes inactive musicians from the list.
+     */
+    private static class RunnableWatcher implements Runnable {
+        /**
+         * The time between each check of the list.
+         */
+        public static final long THREAD_TIMEOUT = 1000; // 1 seconds
+
+        /**
+         * The maximum time a musician can be inactive before being removed from the list.
+         */
+        private static final long INACTIVE_TIMEOUT = 5000; // 5 seconds
+
+        /**
+         * Create a new watcher, used to log when the thread first starts.
+         */
+        private RunnableWatcher() {
+            System.out.println("Starting auditor watcher");
+        }
+
+        /**
+         * Remove inactive musicians from the list. Only the musicians whose deadline is due in the timing wheel are
+         * looked at; those that sent a heartbeat in the meantime are rescheduled to their new deadline.
+         */
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            final long now = System.currentTimeMillis();
+            final int removed = expiries.advance(now, (msb, lsb) -> {
+                final long lastActivity = musicians.expire(msb, lsb, now, INACTIVE_TIMEOUT, m -> {
+                    changes.append(ChangeLog.Type.expired, m);
+                    if (journal != null) {
+                        journal.append(Journal.Type.expired, now, m.uuid().getMostSignificantBits(), m.uuid().getLeastSignificantBits(), m.instrument());
+                    }
+                });
+                return lastActivity < 0 ? -1 : lastActivity + INACTIVE_TIMEOUT;
+            });
+            metrics.expired.add(removed);
+            metrics.watcherTick.record(System.nanoTime() - start);
+            if (removed > 0) {
+                snapshots.invalidate();
+                System.out.println("Auditor watcher: removed " + removed + " inactive musicians");
+            }
+        }
+    }
+
+    /**
+     * A hashed timing wheel of musician deadlines. Each musician is scheduled once when it joins and is only revisited
+     * when its deadline comes due, at which point it is either expired or rescheduled to its latest deadline. A tick
+     * therefore costs the number of due musicians instead of the size of the list, and heartbeats don't touch the
+     * wheel at all.
+     */
+    static class ExpiryWheel {
+        /**
+         * The number of buckets. Deadlines further away than a full turn stay in their bucket until their round comes.
+         */
+        private static final int BUCKETS = 64;
+
+        /**
+         * Checks a due musician.
+         */
+        interface Expiry {
+            /**
+             * @param msb The most significant bits of the UUID of the musician.
+             * @param lsb The least significant bits of the UUID of the musician.
+             * @return -1 if the musician was expired, or its new deadline in milliseconds.
+             */
+            long expire(long msb, long lsb);
+        }
+
+        /**
+         * The musicians scheduled in a bucket, as the bits of their UUID and the tick at which to check them, in
+         * growable primitive arrays so that a scheduled musician costs 24 bytes and no object.
+         */
+        private static final class Bucket {
+            private final ReentrantLock lock = new ReentrantLock();
+            private long[] msbs = new long[16];
+            private long[] lsbs = new long[16];
+            private long[] ticks = new long[16];
+            private int size;
+
+            void add(long msb, long lsb, long tick) {
+                lock.lock();
+                try {
+                    if (size == ticks.length) {
+                        msbs = Arrays.copyOf(msbs, size * 2);
+                        lsbs = Arrays.copyOf(lsbs, size * 2);
+                        ticks = Arrays.copyOf(ticks, size * 2);
+                    }
+                    msbs[size] = msb;
+                    lsbs[size] = lsb;
+                    ticks[size] = tick;
+                    size++;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * The buckets, indexed by tick modulo the number of buckets.
+         */
+        private final Bucket[] buckets = new Bucket[BUCKETS];
+
+        /**
+         * The duration of a tick in milliseconds.
+         */
+        private final long resolution;
+
+        /**
+         * The next tick to process. Only written by the watcher, read by the listener to avoid scheduling in the past.
+         */
+        private volatile long cursor;
+
+        /**
+         * The entries of the bucket being processed, moved out so that the bucket isn't locked while they are checked.
+         * Only used by the watcher, and reused from one tick to the next.
+         */
+        private long[] dueMsbs = new long[0];
+        private long[] dueLsbs = new long[0];
+        private long[] dueTicks = new long[0];
+
+        /**
+         * Create a new timing wheel.
+         *
+         * @param resolution The duration of a tick in milliseconds.
+         * @param now        The current time in milliseconds.
+         */
+        ExpiryWheel(long resolution, long now) {
+            this.resolution = resolution;
+            this.cursor = now / resolution;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new Bucket();
+            }
+        }
+
+        /**
+         * Schedule a musician to be checked once the deadline has passed.
+         *
+         * @param msb      The most significant bits of the UUID of the musician.
+         * @param lsb      The least significant bits of the UUID of the musician.
+         * @param deadline The time in milliseconds at which the musician expires if it stays silent.
+         */
+        void schedule(long msb, long lsb, long deadline) {
+            // Round up so the musician is never checked before its deadline, and never schedule behind the cursor.
+            final long tick = Math.max(Math.ceilDiv(deadline, resolution), cursor + 1);
+            buckets[Math.floorMod(tick, BUCKETS)].add(msb, lsb, tick);
+        }
+
+        /**
+         * Process all the ticks up to the current time.
+         *
+         * @param now    The current time in milliseconds.
+         * @param expire Called for each due musician.
+         * @return The number of expired musicians.
+         */
+        int advance(long now, Expiry expire) {
+            final long last = now / resolution;
+            int expired = 0;
+            for (long tick = cursor; tick <= last; tick++) {
+                // Entries added to the bucket from now on, including the ones put back below, wait for the next turn.
+                final int due = drain(buckets[Math.floorMod(tick, BUCKETS)]);
+                for (int i = 0; i < due; i++) {
+                    if (dueTicks[i] > last) {
+                        buckets[Math.floorMod(dueTicks[i], BUCKETS)].add(dueMsbs[i], dueLsbs[i], dueTicks[i]); // Not this round yet.
+                        continue;
+                    }
+                    final long deadline = expire.expire(dueMsbs[i], dueLsbs[i]);
+                    if (deadline < 0) {
+                        expired++;
+                    } else {
+                        final long next = Math.max(Math.ceilDiv(deadline, resolution), last + 1);
+                        buckets[Math.floorMod(next, BUCKETS)].add(dueMsbs[i], dueLsbs[i], next);
+                    }
+                }
+                // Stop at a full turn, every bucket has been visited.
+                if (tick - cursor >= BUCKETS - 1) {
+                    break;
+                }
+            }
+            cursor = last + 1;
+            return expired;
+        }
+
+        /**
+         * Move the entries of a bucket to the due arrays.
+         *
+         * @return The number of entries moved.
+         */
+        private int drain(Bucket bucket) {
+            bucket.lock.lock();
+            try {
+                final int size = bucket.size;
+                if (dueTicks.length < size) {
+                    dueMsbs = new long[bucket.ticks.length];
+                    dueLsbs = new long[bucket.ticks.length];
+                    dueTicks = new long[bucket.ticks.length];
+                }
+                System.arraycopy(bucket.msbs, 0, dueMsbs, 0, size);
+                System.arraycopy(bucket.lsbs, 0, dueLsbs, 0, size);
+                System.arraycopy(bucket.ticks, 0, dueTicks, 0, size);
+                bucket.size = 0;
+                return size;
+            } finally {
+                bucket.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A thread that serves the list of musicians to clients.
+     */
+    private static class RunnableServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = 2205;
+
+        /**
+         * The maximum time allowed to write the response to a client before the connection is dropped.
+         */
+        private static final long WRITE_TIMEOUT = config("AUDITOR_WRITE_TIMEOUT", 5000); // 5 seconds
+
+        /**
+         * The maximum number of clients served at the same time. Further connections wait in the accept backlog.
+         */
+        private static final int MAX_CLIENTS = (int) config("AUDITOR_MAX_CLIENTS", 1000);
+
+        /**
+         * The number of musicians from which each client gets the list streamed straight from the registry, rather
+         * than a shared snapshot, so that the auditor never holds the whole serialized list in memory.
+         */
+        private static final int STREAM_THRESHOLD = (int) config("AUDITOR_STREAM_THRESHOLD", 50_000);
+
+        /**
+         * The executor on which each client is served. Owned by the server, as the main executor is shut down as soon
+         * as the long-running tasks are submitted.
+         */
+        private final Executor clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        /**
+         * The executor used to enforce the write timeout. Owned by the server rather than shared with the watcher, and
+         * set to drop cancelled timeouts at once, as nearly every timeout is cancelled and would otherwise keep its
+         * socket reachable in the queue for the whole timeout.
+         */
+        private final ScheduledThreadPoolExecutor timeoutExecutor = new ScheduledThreadPoolExecutor(1);
+
+        /**
+         * Limits the number of clients served at the same time.
+         */
+        private final Semaphore clients = new Semaphore(MAX_CLIENTS);
+
+        /**
+         * Create a new server.
+         */
+        private RunnableServer() {
+            timeoutExecutor.setRemoveOnCancelPolicy(true);
+        }
+
+        /**
+         * Start the server on the given port and run the client handler on virtual threads.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor server on TCP port " + PORT);
+            try (final var serverSocket = new ServerSocket(PORT)) {
+                while (true) {
+                    try {
+                        clients.acquire();
+                        final var socket = serverSocket.accept();
+                        clientExecutor.execute(() -> {
+                            try {
+                                serve(socket);
+                            } finally {
+                                clients.release();
+                            }
+                        });
+                    } catch (IOException e) {
+                        clients.release();
+                        System.err.println("Error opening client socket: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server socket: " + e.getMessage());
+            } catch (InterruptedException e) {
+                System.err.println("Auditor server interrupted");
+            }
+        }
+
+        /**
+         * Send the list of musicians to a client and close the connection. A client that doesn't read the response
+         * within the write timeout is disconnected so that it can't hold a slot forever.
+         *
+         * @param socket The client socket.
+         */
+        private void serve(Socket socket) {
+            final long start = System.nanoTime();
+            metrics.connections.increment();
+            final ScheduledFuture<?> timeout = timeoutExecutor.schedule(() -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }, WRITE_TIMEOUT, TimeUnit.MILLISECONDS);
+            try (socket; final var out = socket.getOutputStream()) {
+                if (musicians.size() >= STREAM_THRESHOLD) {
+                    final var writer = new MusicianWriter(out, MusicianWriter.BUFFER_SIZE, MusicianWriter.PRETTY);
+                    musicians.forEach(writer);
+                    log.event(AsyncLog.Event.streamed, writer.finish());
+                } else {
+                    final SnapshotCache.Snapshot snapshot = snapshots.get();
+                    log.event(AsyncLog.Event.served, snapshot.size());
+                    out.write(snapshot.bytes());
+                }
+                out.flush();
+                metrics.responseWrite.record(System.nanoTime() - start);
+            } catch (UncheckedIOException e) {
+                System.err.println("Error writing to client socket: " + e.getCause().getMessage());
+            } catch (IOException e) {
+                System.err.println("Error writing to client socket: " + e.getMessage());
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A non-blocking alternative to {@link RunnableServer}. The calling thread accepts connections and hands them
+     * round-robin to one or more event loops, each with its own selector, which write the cached snapshot to every
+     * connection before closing it. Connections are never handed to a thread of their own, which keeps the cost of
+     * short-lived connections low.
+     */
+    private static class RunnableSelectorServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = RunnableServer.PORT;
+
+        /**
+         * The maximum time allowed to write the response to a client before the connection is dropped.
+         */
+        private static final long WRITE_TIMEOUT = RunnableServer.WRITE_TIMEOUT;
+
+        /**
+         * A connection handed to an event loop, which hasn't been written to yet.
+         *
+         * @param channel    The client channel.
+         * @param acceptedAt The time at which the connection was accepted, from {@link System#nanoTime()}.
+         */
+        private record Accepted(SocketChannel channel, long acceptedAt) {
+        }
+
+        /**
+         * A response that couldn't be written at once and waits for the client to read.
+         *
+         * @param buffer     The rest of the response.
+         * @param deadline   The time after which the client is disconnected, in milliseconds.
+         * @param acceptedAt The time at which the connection was accepted, from {@link System#nanoTime()}.
+         */
+        private record Pending(ByteBuffer buffer, long deadline, long acceptedAt) {
+        }
+
+        /**
+         * A snapshot copied into a read-only direct buffer, which channels write without another copy.
+         *
+         * @param snapshot The snapshot.
+         * @param buffer   The JSON of the snapshot. Use a duplicate to write it.
+         */
+        private record DirectSnapshot(SnapshotCache.Snapshot snapshot, ByteBuffer buffer) {
+        }
+
+        /**
+         * The number of event loops.
+         */
+        private final int loops;
+
+        /**
+         * The latest snapshot in a direct buffer, shared by the event loops and copied again when the snapshot changes.
+         */
+        private volatile DirectSnapshot direct;
+
+        /**
+         * Create a new selector server.
+         *
+         * @param loops The number of event loops, usually one per core.
+         */
+        private RunnableSelectorServer(int loops) {
+            this.loops = Math.max(1, loops);
+        }
+
+        /**
+         * Open the server channel, start the event loops and accept connections on the calling thread.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor selector server on TCP port " + PORT + " with " + loops + " event loops");
+            try (final var serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(PORT), 1024);
+                final var eventLoops = new EventLoop[loops];
+                for (int i = 0; i < loops; i++) {
+                    eventLoops[i] = new EventLoop(Selector.open());
+                    new Thread(eventLoops[i], "auditor-selector-" + i).start();
+                }
+                int next = 0;
+                while (serverChannel.isOpen()) {
+                    try {
+                        final SocketChannel channel = serverChannel.accept();
+                        metrics.connections.increment();
+                        eventLoops[next].hand(new Accepted(channel, System.nanoTime()));
+                        next = next + 1 == loops ? 0 : next + 1;
+                    } catch (IOException e) {
+                        System.err.println("Error accepting client channel: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server channel: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Get the latest snapshot in a direct buffer, copying it on the first call after each rebuild. Two loops may
+         * copy the same snapshot at once, in which case the last copy wins.
+         *
+         * @return A duplicate of the buffer, positioned at the start of the JSON.
+         */
+        private ByteBuffer snapshot() {
+            final SnapshotCache.Snapshot snapshot = snapshots.get();
+            DirectSnapshot current = direct;
+            if (current == null || current.snapshot() != snapshot) {
+                final byte[] bytes = snapshot.bytes();
+                current = new DirectSnapshot(snapshot, ByteBuffer.allocateDirect(bytes.length).put(bytes).flip().asReadOnlyBuffer());
+                direct = current;
+            }
+            return current.buffer().duplicate();
+        }
+
+        /**
+         * An event loop, which writes responses to the connections handed to it until its selector is closed. Only
+         * this loop's thread registers channels with its selector, so the acceptor queues them and wakes it up.
+         */
+        private final class EventLoop implements Runnable {
+            /**
+             * The selector of this loop.
+             */
+            private final Selector selector;
+
+            /**
+             * The connections handed to this loop since it last woke up.
+             */
+            private final Queue<Accepted> accepted = new ConcurrentLinkedQueue<>();
+
+            /**
+             * Create a new event loop.
+             *
+             * @param selector The selector of the loop.
+             */
+            private EventLoop(Selector selector) {
+                this.selector = selector;
+            }
+
+            /**
+             * Hand a connection to this loop. Called by the acceptor.
+             *
+             * @param connection The accepted connection.
+             */
+            private void hand(Accepted connection) {
+                accepted.add(connection);
+                selector.wakeup();
+            }
+
+            @Override
+            public void run() {
+                try (selector) {
+                    long nextSweep = System.currentTimeMillis() + WRITE_TIMEOUT;
+                    while (selector.isOpen()) {
+                        selector.select(WRITE_TIMEOUT);
+                        final long now = System.currentTimeMillis();
+                        final var keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            final SelectionKey key = keys.next();
+                            keys.remove();
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                        Accepted connection;
+                        while ((connection = accepted.poll()) != null) {
+                            serve(connection, now);
+                        }
+                        if (now >= nextSweep) { // Drop the clients that stopped reading.
+                            for (final SelectionKey key : selector.keys()) {
+                                if (key.attachment() instanceof Pending pending && now >= pending.deadline()) {
+                                    close(key.channel());
+                                }
+                            }
+                            nextSweep = now + WRITE_TIMEOUT;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error in selector loop: " + e.getMessage());
+                }
+            }
+
+            /**
+             * Try to write the response to a new connection at once, and register it for writing otherwise.
+             */
+            private void serve(Accepted connection, long now) {
+                final SocketChannel channel = connection.channel();
+                final ByteBuffer buffer = snapshot();
+                try {
+                    channel.configureBlocking(false);
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        channel.register(selector, SelectionKey.OP_WRITE, new Pending(buffer, now + WRITE_TIMEOUT, connection.acceptedAt()));
+                    } else {
+                        channel.close();
+                        metrics.responseWrite.record(System.nanoTime() - connection.acceptedAt());
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing to client channel: " + e.getMessage());
+                    close(channel);
+                }
+            }
+        }
+
+        /**
+         * Continue writing a pending response, and close the connection once it is complete.
+         */
+        private void write(SelectionKey key) {
+            final var channel = (SocketChannel) key.channel();
+            final var pending = (Pending) key.attachment();
+            try {
+                channel.write(pending.buffer());
+                if (!pending.buffer().hasRemaining()) {
+                    channel.close();
+                    metrics.responseWrite.record(System.nanoTime() - pending.acceptedAt());
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing to client channel: " + e.getMessage());
+                close(channel);
+            }
+        }
+
+        /**
+         * Close a channel, logging instead of throwing.
+         */
+        private static void close(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A thread that serves incremental updates of the list of musicians. The client sends the epoch and version it last
+     * received on a line, as {@code epoch:version}, or an empty line for the first request, and gets the musicians that
+     * joined, changed instrument or expired since, along with the new epoch and version to send next time. Heartbeats
+     * of known musicians are not changes, so the last activity in a delta is the one at the time the change happened.
+     * When the version is too old for the change log, or comes from another run of the auditor, the full list is sent
+     * instead. Responses are compact JSON, and the musicians are streamed with a {@link MusicianWriter}.
+     */
+    private static class RunnableDeltaServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = (int) config("AUDITOR_DELTA_PORT", 2206);
+
+        /**
+         * The response to a delta request.
+         *
+         * @param epoch   The epoch of the change log, to send in the next request along with the version.
+         * @param version The version to send in the next request.
+         * @param full    Whether the response is the full list, in which case the client must drop what it knows.
+         * @param added   The musicians that joined. Empty in a full response, whose musicians are read from the list
+         *                as they are written rather than copied.
+         * @param updated The musicians that changed instrument.
+         * @param expired The UUIDs of the musicians that expired.
+         */
+        record Delta(long epoch, long version, boolean full, List<Musician> added, List<Musician> updated, List<UUID> expired) {
+        }
+
+        /**
+         * The executor on which each client is served.
+         */
+        private final Executor clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        /**
+         * Start the server and serve each client on a virtual thread.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor delta server on TCP port " + PORT);
+            try (final var serverSocket = new ServerSocket(PORT)) {
+                while (true) {
+                    try {
+                        final var socket = serverSocket.accept();
+                        clientExecutor.execute(() -> serve(socket));
+                    } catch (IOException e) {
+                        System.err.println("Error opening client socket: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read the version sent by a client, write the delta and close the connection.
+         *
+         * @param socket The client socket.
+         */
+        private static void serve(Socket socket) {
+            try (socket; final var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8)); final var out = new BufferedOutputStream(socket.getOutputStream(), MusicianWriter.BUFFER_SIZE)) {
+                socket.setSoTimeout((int) RunnableServer.WRITE_TIMEOUT);
+                final String line = in.readLine();
+                final String[] cursor = line == null ? new String[0] : line.trim().split(":", 2);
+                long epoch = 0;
+                long version = 0;
+                try {
+                    if (cursor.length == 2) {
+                        epoch = Long.parseLong(cursor[0]);
+                        version = Long.parseLong(cursor[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    epoch = 0; // An invalid cursor is treated like a first request.
+                }
+                write(out, delta(epoch, version));
+                out.flush();
+            } catch (UncheckedIOException e) {
+                System.err.println("Error serving delta client: " + e.getCause().getMessage());
+            } catch (IOException e) {
+                System.err.println("Error serving delta client: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Write a delta as compact JSON, with the same fields as Gson would. The musicians of a full response are
+         * written straight from the list.
+         *
+         * @param out   The output, which is not flushed.
+         * @param delta The delta.
+         * @throws IOException If the output fails.
+         */
+        static void write(OutputStream out, Delta delta) throws IOException {
+            out.write(("{\"epoch\":" + delta.epoch() + ",\"version\":" + delta.version() + ",\"full\":" + delta.full() + ",\"added\":").getBytes(UTF_8));
+            final var added = new MusicianWriter(out, MusicianWriter.BUFFER_SIZE, false);
+            if (delta.full()) {
+                musicians.forEach(added);
+            } else {
+                delta.added().forEach(added);
+            }
+            added.finish();
+            out.write(",\"updated\":".getBytes(UTF_8));
+            final var updated = new MusicianWriter(out, MusicianWriter.BUFFER_SIZE, false);
+            delta.updated().forEach(updated);
+            updated.finish();
+            out.write((",\"expired\":" + compactGson.toJson(delta.expired()) + "}").getBytes(UTF_8));
+        }
+
+        /**
+         * Compute the changes since a version. Several changes of the same musician are folded into one.
+         *
+         * @param epoch The epoch last received by the client, whose versions are meaningless for another epoch.
+         * @param since The version last received by the client.
+         * @return The delta.
+         */
+        static Delta delta(long epoch, long since) {
+            final long version = changes.version();
+            final List<ChangeLog.Change> log = epoch == changes.epoch() && since > 0 ? changes.since(since, version) : null;
+            if (log == null) {
+                return new Delta(changes.epoch(), version, true, List.of(), List.of(), List.of());
+            }
+
+            final var first = new HashMap<UUID, ChangeLog.Type>();
+            final var last = new LinkedHashMap<UUID, ChangeLog.Type>();
+            for (final ChangeLog.Change change : log) {
+                first.putIfAbsent(change.musician().uuid(), change.type());
+                last.put(change.musician().uuid(), change.type());
+            }
+            final var added = new ArrayList<Musician>();
+            final var updated = new ArrayList<Musician>();
+            final var expired = new ArrayList<UUID>();
+            last.forEach((uuid, type) -> {
+                final boolean joined = first.get(uuid) == ChangeLog.Type.joined;
+                if (type == ChangeLog.Type.expired) {
+                    if (!joined) { // A musician that joined and left in between was never seen by the client.
+                        expired.add(uuid);
+                    }
+                    return;
+                }
+                final Musician musician = musicians.get(uuid);
+                if (musician != null) { // Otherwise it expired after the version was read, and will be in the next delta.
+                    (joined ? added : updated).add(musician);
+                }
+            });
+            return new Delta(changes.epoch(), version, false, added, updated, expired);
+        }
+    }
+
+    /**
+     * A thread that streams changes to the list of musicians to long-lived clients, as newline-delimited JSON. A new
+     * subscriber first receives every current musician as a join, then each change as it happens. Every subscriber has
+     * a bounded queue, with room for the changes that arrive while the current musicians are being sent on top of the
+     * usual size; a subscriber that doesn't read fast enough to keep it from filling up is disconnected, so that it can
+     * never slow the listener or the watcher down.
+     */
+    private static class RunnableSubscriptionServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = (int) config("AUDITOR_SUBSCRIBE_PORT", 2207);
+
+        /**
+         * The number of changes that can wait for a subscriber before it is considered too slow, besides the room made
+         * for the changes that arrive while the current musicians are sent.
+         */
+        private static final int QUEUE_SIZE = (int) config("AUDITOR_SUBSCRIBER_QUEUE", 1024);
+
+        /**
+         * The executor on which each subscriber is served.
+         */
+        private final Executor clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        /**
+         * Start the server and serve each subscriber on a virtual thread.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor subscription server on TCP port " + PORT);
+            try (final var serverSocket = new ServerSocket(PORT)) {
+                while (true) {
+                    try {
+                        final var socket = serverSocket.accept();
+                        clientExecutor.execute(() -> new Subscriber(socket).run());
+                    } catch (IOException e) {
+                        System.err.println("Error opening client socket: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * A connected subscriber. The change log pushes into its queue, and its thread writes the queue to the socket.
+         */
+        private static class Subscriber implements Consumer<ChangeLog.Change>, Runnable {
+            private final Socket socket;
+
+            /**
+             * The changes waiting to be written. Linked rather than array-based, as its capacity grows with the number
+             * of musicians but it is usually almost empty.
+             */
+            private final BlockingQueue<ChangeLog.Change> queue;
+
+            /**
+             * Whether the queue overflowed. Set once, after which the subscriber is disconnected.
+             */
+            private volatile boolean overflowed;
+
+            private Subscriber(Socket socket) {
+                this.socket = socket;
+                // Changes pile up for as long as the current musicians are being written, so one more slot for each of
+                // them keeps the first dump of a large list from overflowing the queue on its own.
+                this.queue = new LinkedBlockingQueue<>(QUEUE_SIZE + musicians.size());
+            }
+
+            /**
+             * Queue a change without ever blocking. On overflow, close the socket so that a write blocked on a client
+             * that stopped reading fails too.
+             */
+            @Override
+            public void accept(ChangeLog.Change change) {
+                if (!overflowed && !queue.offer(change)) {
+                    overflowed = true;
+                    changes.unsubscribe(this);
+                    Thread.startVirtualThread(this::close);
+                }
+            }
+
+            /**
+             * Send the current musicians, then the changes, until the client disconnects or falls behind.
+             */
+            @Override
+            public void run() {
+                final long version = changes.subscribe(this);
+                try (final var out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8))) {
+                    for (final Musician musician : musicians.values()) {
+                        write(out, new ChangeLog.Change(version, ChangeLog.Type.joined, musician));
+                    }
+                    out.flush();
+                    while (!overflowed) {
+                        write(out, queue.take());
+                        // Write everything already queued before flushing, so bursts go out in few packets.
+                        for (ChangeLog.Change change; (change = queue.poll()) != null; ) {
+                            write(out, change);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    if (!overflowed) {
+                        System.out.println("Auditor subscription server: subscriber left");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    changes.unsubscribe(this);
+                    close();
+                }
+                if (overflowed) {
+                    System.out.println("Auditor subscription server: disconnected a slow subscriber");
+                }
+            }
+
+            /**
+             * Write a change as a line of JSON.
+             */
+            private static void write(BufferedWriter out, ChangeLog.Change change) throws IOException {
+                out.write(compactGson.toJson(change));
+                out.write('\n');
+            }
+
+            /**
+             * Close the socket, logging instead of throwing.
+             */
+            private void close() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A minimal HTTP server that exposes the metrics in the Prometheus text format at /metrics, on its own port so
+     * that scraping never competes with the list clients.
+     */
+    private static class RunnableMetricsServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = (int) config("AUDITOR_METRICS_PORT", 2208);
+
+        /**
+         * The executor on which each scrape is served.
+         */
+        private final Executor clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        /**
+         * Start the server and serve each scrape on a virtual thread.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor metrics server on TCP port " + PORT);
+            try (final var serverSocket = new ServerSocket(PORT)) {
+                while (true) {
+                    try {
+                        final var socket = serverSocket.accept();
+                        clientExecutor.execute(() -> serve(socket));
+                    } catch (IOException e) {
+                        System.err.println("Error opening client socket: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read an HTTP request, answer it and close the connection.
+         *
+         * @param socket The client socket.
+         */
+        private static void serve(Socket socket) {
+            try (socket; final var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8)); final var out = socket.getOutputStream()) {
+                socket.setSoTimeout((int) RunnableServer.WRITE_TIMEOUT);
+                final String request = in.readLine();
+                String header;
+                do { // The headers are not needed.
+                    header = in.readLine();
+                } while (header != null && !header.isEmpty());
+                final String[] parts = request == null ? new String[0] : request.split(" ");
+                final boolean found = parts.length >= 2 && parts[0].equals("GET") && (parts[1].equals("/metrics") || parts[1].equals("/"));
+                final byte[] body = (found ? metrics.scrape() : "Not found\n").getBytes(UTF_8);
+                final String head = "HTTP/1.1 " + (found ? "200 OK" : "404 Not Found") + "\r\n"
+                        + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n";
+                out.write(head.getBytes(UTF_8));
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Error serving metrics client: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A server that answers time-range queries over the journal, one per connection. A query is a line made of a
+     * command and a range in milliseconds, inclusive, and the answer is a JSON document:
+     * <ul>
+     *     <li>{@code active <from> <to>}: the musicians that played during the range, with their last activity in it</li>
+     *     <li>{@code counts <from> <to>}: the number of musicians of each instrument that played in each minute</li>
+     * </ul>
+     */
+    private static class RunnableQueryServer implements Runnable {
+        /**
+         * The port on which the server listens.
+         */
+        private static final int PORT = (int) config("AUDITOR_QUERY_PORT", 2209);
+
+        /**
+         * An answer to an invalid query.
+         *
+         * @param error The reason why the query is invalid.
+         */
+        record QueryError(String error) {
+        }
+
+        /**
+         * The executor on which each client is served.
+         */
+        private final Executor clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        /**
+         * The directory of the journal segments.
+         */
+        private final Path directory;
+
+        /**
+         * Create a new query server.
+         *
+         * @param directory The directory of the journal segments.
+         */
+        private RunnableQueryServer(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Start the server and serve each client on a virtual thread.
+         */
+        @Override
+        public void run() {
+            System.out.println("Starting auditor query server on TCP port " + PORT);
+            try (final var serverSocket = new ServerSocket(PORT)) {
+                while (true) {
+                    try {
+                        final var socket = serverSocket.accept();
+                        clientExecutor.execute(() -> serve(socket));
+                    } catch (IOException e) {
+                        System.err.println("Error opening client socket: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error opening server socket: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Read the query of a client, write the answer and close the connection.
+         *
+         * @param socket The client socket.
+         */
+        private void serve(Socket socket) {
+            try (socket; final var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8)); final var out = socket.getOutputStream()) {
+                socket.setSoTimeout((int) RunnableServer.WRITE_TIMEOUT);
+                final String line = in.readLine();
+                out.write((compactGson.toJson(answer(line == null ? "" : line.trim())) + "\n").getBytes(UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Error serving query client: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Answer a query.
+         *
+         * @param query The query line.
+         * @return The object to send as JSON.
+         */
+        private Object answer(String query) {
+            final String[] parts = query.split("\\s+");
+            if (parts.length != 3) {
+                return new QueryError("Expected: active|counts FROM TO, in milliseconds");
+            }
+            final long from;
+            final long to;
+            try {
+                from = Long.parseLong(parts[1]);
+                to = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                return new QueryError("Invalid time: " + e.getMessage());
+            }
+            try {
+                return switch (parts[0]) {
+                    case "active" -> JournalQuery.active(directory, from, to);
+                    case "counts" -> JournalQuery.counts(directory, from, to);
+                    default -> new QueryError("Unknown command " + parts[0]);
+                };
+            } catch (IOException e) {
+                return new QueryError("Error reading the journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A bounded log of the changes to the list of musicians. Each change gets the next version number. Heartbeats of
+     * known musicians are not logged, so the log only grows with joins, instrument changes and expiries.
+     */
+    static class ChangeLog {
+        /**
+         * The kind of change. The values are in lowercase because they are used in serialization.
+         */
+        enum Type {
+            joined, updated, expired
+        }
+
+        /**
+         * A change to the list.
+         *
+         * @param version  The version of the list after the change.
+         * @param type     The kind of change.
+         * @param musician The musician as it was when the change happened.
+         */
+        record Change(long version, Type type, Musician musician) {
+        }
+
+        /**
+         * The latest changes, in a ring indexed by version.
+         */
+        private final Change[] ring;
+
+        /**
+         * A random number drawn for each run of the auditor. Versions start over on every run, so a version only means
+         * something along with the epoch of the log that issued it.
+         */
+        private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+        /**
+         * The version of the latest change. Written under the lock.
+         */
+        private volatile long version;
+
+        /**
+         * Serializes the appends. Changes are rare compared to heartbeats, so contention stays low.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The subscribers called with each change.
+         */
+        private final List<Consumer<Change>> subscribers = new CopyOnWriteArrayList<>();
+
+        /**
+         * Create a new change log.
+         *
+         * @param capacity The number of changes kept. Clients that are further behind get the full list.
+         */
+        ChangeLog(int capacity) {
+            this.ring = new Change[Math.max(1, capacity)];
+        }
+
+        /**
+         * Record a change.
+         *
+         * @param type     The kind of change.
+         * @param musician The musician as it is after the change, or as it was when it expired.
+         */
+        void append(Type type, Musician musician) {
+            lock.lock();
+            try {
+                final long next = version + 1;
+                final Change change = new Change(next, type, musician);
+                ring[(int) (next % ring.length)] = change;
+                version = next;
+                for (final Consumer<Change> subscriber : subscribers) { // Under the lock so all see the same order.
+                    subscriber.accept(change);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Register a subscriber that is called with each change, in order. It is called while the log is locked, so it
+         * must return quickly and never block.
+         *
+         * @param subscriber The subscriber.
+         * @return The version of the latest change before the subscription.
+         */
+        long subscribe(Consumer<Change> subscriber) {
+            lock.lock();
+            try {
+                subscribers.add(subscriber);
+                return version;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove a subscriber.
+         *
+         * @param subscriber The subscriber.
+         */
+        void unsubscribe(Consumer<Change> subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        /**
+         * @return The version of the latest change.
+         */
+        long version() {
+            return version;
+        }
+
+        /**
+         * @return The epoch of the log, which tells its versions from those of another run.
+         */
+        long epoch() {
+            return epoch;
+        }
+
+        /**
+         * Get the changes after a version, up to another.
+         *
+         * @param since The version after which changes are returned.
+         * @param until The last version to return, usually read from {@link #version()} beforehand.
+         * @return The changes in order, or null if some of them are no longer in the log or the version is unknown.
+         */
+        List<Change> since(long since, long until) {
+            if (since > until || until - since > ring.length) {
+                return null;
+            }
+            final var result = new ArrayList<Change>((int) (until - since));
+            lock.lock();
+            try {
+                for (long v = since + 1; v <= until; v++) {
+                    final Change change = ring[(int) (v % ring.length)];
+                    if (change == null || change.version() != v) {
+                        return null; // Overwritten by newer changes while we were waiting.
+                    }
+                    result.add(change);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A cache of the serialized list of musicians. The JSON is only rebuilt when the list has changed since the last
+     * build, and at most once per maximum age, so that concurrent clients share the same bytes.
+     */
+    static class SnapshotCache {
+        /**
+         * A serialized list of musicians.
+         *
+         * @param version The version of the snapshot, incremented on each rebuild.
+         * @param size    The number of musicians in the snapshot.
+         * @param bytes   The UTF-8 encoded JSON. Must not be modified.
+         * @param builtAt The time at which the snapshot was built, in milliseconds.
+         */
+        record Snapshot(long version, int size, byte[] bytes, long builtAt) {
+        }
+
+        /**
+         * The minimum time between two rebuilds, in milliseconds.
+         */
+        private final long maxAge;
+
+        /**
+         * The latest snapshot.
+         */
+        private volatile Snapshot current = new Snapshot(0, 0, "[]".getBytes(UTF_8), 0);
+
+        /**
+         * Whether the list has changed since the latest snapshot was built.
+         */
+        private volatile boolean dirty = true;
+
+        /**
+         * Ensures a single rebuild at a time. A lock rather than synchronized so virtual threads don't pin their carrier.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Create a new snapshot cache.
+         *
+         * @param maxAge The minimum time between two rebuilds, in milliseconds.
+         */
+        SnapshotCache(long maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        /**
+         * Mark the list as changed. Cheap enough to be called on every heartbeat.
+         */
+        void invalidate() {
+            if (!dirty) { // Avoid a volatile write when the flag is already set.
+                dirty = true;
+            }
+        }
+
+        /**
+         * Get the latest snapshot, rebuilding it first if the list has changed and the snapshot is old enough.
+         *
+         * @return The snapshot.
+         */
+        Snapshot get() {
+            final Snapshot snapshot = current;
+            if (!dirty || System.currentTimeMillis() - snapshot.builtAt() < maxAge) {
+                return snapshot;
+            }
+            lock.lock();
+            try {
+                if (current != snapshot) { // Another client rebuilt it while we were waiting.
+                    return current;
+                }
+                dirty = false; // Cleared before reading the list so that concurrent changes mark it dirty again.
+                final long start = System.nanoTime();
+                final var bytes = new ByteArrayOutputStream(snapshot.bytes().length + MusicianWriter.BUFFER_SIZE);
+                final var writer = new MusicianWriter(bytes, MusicianWriter.BUFFER_SIZE, MusicianWriter.PRETTY);
+                musicians.forEach(writer);
+                final int size;
+                try {
+                    size = writer.finish();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // Never thrown by a ByteArrayOutputStream.
+                }
+                final Snapshot rebuilt = new Snapshot(snapshot.version() + 1, size, bytes.toByteArray(), System.currentTimeMillis());
+                metrics.snapshotSerialize.record(System.nanoTime() - start);
+                current = rebuilt;
+                return rebuilt;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A file that holds a copy of the list, saved periodically and restored on startup, so that a restarted auditor
+     * knows every musician at once instead of after a full heartbeat period. The file is a header followed by
+     * fixed-size records, written through a memory mapping into a temporary file that then replaces the previous one,
+     * so that a crash during a save never leaves a corrupt file behind.
+     */
+    static class RegistryFile implements Runnable {
+        /**
+         * The time between two saves, in milliseconds, or 0 to neither save nor restore the list. A clean stop saves
+         * the latest list anyway, so the period only bounds what a crash loses, and musicians missing from an old save
+         * come back with their next heartbeat.
+         */
+        static final long PERIOD = config("AUDITOR_STATE_PERIOD", 5000); // 5 seconds
+
+        /**
+         * The location of the file. The temporary directory survives a restart of the container.
+         */
+        static final Path PATH = Path.of(config("AUDITOR_STATE_FILE", Path.of(System.getProperty("java.io.tmpdir"), "auditor-registry.bin").toString()));
+
+        /**
+         * The magic number at the start of the file, "AUDR" in ASCII.
+         */
+        private static final int MAGIC = 0x41554452;
+
+        /**
+         * The version of the format.
+         */
+        private static final int VERSION = 1;
+
+        /**
+         * The size of the header: magic, version, time of the save in milliseconds and number of records.
+         */
+        static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+        /**
+         * The size of a record: most and least significant bits of the UUID, instrument ordinal, last activity.
+         */
+        static final int RECORD_SIZE = 8 + 8 + 1 + 8;
+
+        /**
+         * The number of records mapped at once when saving.
+         */
+        private static final int RECORDS_PER_MAPPING = 1 << 16;
+
+        private static final Instrument[] INSTRUMENTS = Instrument.values();
+
+        /**
+         * The location of the file.
+         */
+        private final Path path;
+
+        /**
+         * Ensures a single save at a time, as the shutdown hook may run during a periodic save.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Create a new registry file.
+         *
+         * @param path The location of the file.
+         */
+        RegistryFile(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Save the list, logging instead of throwing. Run periodically and on shutdown.
+         */
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                save(musicians);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Error saving the musicians to " + path + ": " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Restore the musicians that are still active, logging instead of throwing. A missing file is not an error.
+         */
+        void restore() {
+            final long start = System.nanoTime();
+            try {
+                final int restored = load(System.currentTimeMillis(), RunnableWatcher.INACTIVE_TIMEOUT);
+                if (restored >= 0) {
+                    System.out.println("Auditor: restored " + restored + " musicians from " + path + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                }
+            } catch (IOException e) {
+                System.err.println("Error restoring the musicians from " + path + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Write the musicians of a registry to the file.
+         *
+         * @param registry The registry.
+         * @return The number of musicians written.
+         * @throws IOException If the file can't be written.
+         */
+        int save(Registry registry) throws IOException {
+            final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            final int count;
+            try (final var channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final var appender = new Appender(channel);
+                registry.forEachFields(appender);
+                count = appender.count;
+                final long length = appender.base + appender.buffer.position();
+                channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(count).flip(), 0);
+                channel.truncate(length); // The last mapping extended the file past the last record.
+                channel.force(false);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        }
+
+        /**
+         * Appends records to the file through a mapping of a window of it, moved forward when full.
+         */
+        private static class Appender implements Registry.Fields {
+            private final FileChannel channel;
+            private long base = HEADER_SIZE;
+            private MappedByteBuffer buffer;
+            private int count;
+
+            Appender(FileChannel channel) throws IOException {
+                this.channel = channel;
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, (long) RECORDS_PER_MAPPING * RECORD_SIZE);
+            }
+
+            @Override
+            public void accept(long msb, long lsb, Instrument instrument, long lastActivity) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    base += buffer.position();
+                    try {
+                        buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, (long) RECORDS_PER_MAPPING * RECORD_SIZE);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                buffer.putLong(msb).putLong(lsb).put((byte) instrument.ordinal()).putLong(lastActivity);
+                count++;
+            }
+        }
+
+        /**
+         * Add the musicians of the file that are still active to the list, as if they had just sent a heartbeat.
+         *
+         * @param now     The current time, in milliseconds.
+         * @param timeout The maximum inactivity, in milliseconds.
+         * @return The number of musicians restored, or -1 if there is no file.
+         * @throws IOException If the file can't be read or is invalid.
+         */
+        int load(long now, long timeout) throws IOException {
+            if (!Files.exists(path)) {
+                return -1;
+            }
+            try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Truncated file");
+                }
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                    throw new IOException("Unknown file format");
+                }
+                buffer.getLong(); // The time of the save, the last activities are enough to drop inactive musicians.
+                final int count = buffer.getInt();
+                if (count < 0 || (long) count * RECORD_SIZE > size - HEADER_SIZE) {
+                    throw new IOException("Truncated file");
+                }
+                int restored = 0;
+                long latest = Long.MIN_VALUE;
+                for (int i = 0; i < count; i++) {
+                    final long msb = buffer.getLong();
+                    final long lsb = buffer.getLong();
+                    final byte instrument = buffer.get();
+                    final long lastActivity = buffer.getLong();
+                    if (now - lastActivity >= timeout || instrument < 0 || instrument >= INSTRUMENTS.length) {
+                        continue;
+                    }
+                    RunnableListener.restore(msb, lsb, INSTRUMENTS[instrument], lastActivity);
+                    latest = Math.max(latest, lastActivity);
+                    restored++;
+                }
+                listenerStats.restoredUntil = latest;
+                return restored;
+            }
+        }
+    }
+
+    /**
+     * An append-only journal of musician activity: every join, heartbeat and expiry, as fixed-size binary records in
+     * memory-mapped segment files. The listener and the watcher only copy each event into a lock-free bounded queue
+     * of primitive arrays; a background thread writes the queued events in batches. When the queue is full, events
+     * are dropped and counted rather than waiting, so the journal never slows down the listener. A segment is closed
+     * and a new one started when it is full or too old.
+     */
+    static class Journal {
+        /**
+         * The magic number at the start of a segment, "AUDJ" in ASCII.
+         */
+        static final int MAGIC = 0x4155444A;
+
+        /**
+         * The version of the format.
+         */
+        static final int VERSION = 1;
+
+        /**
+         * The size of the segment header: magic, version and creation time in milliseconds.
+         */
+        static final int HEADER_SIZE = 4 + 4 + 8;
+
+        /**
+         * The size of a record: type, time in milliseconds, most and least significant bits of the UUID, instrument
+         * ordinal. A zero type marks the end of the records of a segment that wasn't closed.
+         */
+        static final int RECORD_SIZE = 1 + 8 + 8 + 8 + 1;
+
+        /**
+         * The prefix and suffix of segment file names, around the creation time of the segment.
+         */
+        static final String PREFIX = "segment-";
+        static final String SUFFIX = ".journal";
+
+        /**
+         * The kinds of records. The code written to the file is the ordinal plus one.
+         */
+        enum Type {
+            joined, heartbeat, expired
+        }
+
+        final LongAdder written = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+
+        /**
+         * The directory of the segments.
+         */
+        private final Path directory;
+
+        /**
+         * The size of a segment, in bytes.
+         */
+        private final int segmentSize;
+
+        /**
+         * The maximum age of a segment, in milliseconds.
+         */
+        private final long segmentAge;
+
+        /**
+         * The queue, a bounded multi-producer single-consumer ring in the style of Vyukov's queue. The sequence of a
+         * slot tells whether it is free for the producer of a given position or filled for the consumer.
+         */
+        private final AtomicLongArray sequences;
+        private final byte[] types;
+        private final long[] times;
+        private final long[] msbs;
+        private final long[] lsbs;
+        private final byte[] instruments;
+        private final int mask;
+
+        /**
+         * The next position to fill. Claimed by producers with a compare-and-set.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * The next position to consume. Only used by the writer thread.
+         */
+        private long head;
+
+        /**
+         * Create a journal and start its writer thread.
+         *
+         * @param directory   The directory of the segments, created if needed.
+         * @param capacity    The number of events the queue can hold, rounded up to a power of two.
+         * @param segmentSize The maximum size of a segment, in bytes. A segment is mapped in full, so at most 2 GiB.
+         * @param segmentAge  The maximum age of a segment, in milliseconds.
+         */
+        Journal(Path directory, int capacity, long segmentSize, long segmentAge) {
+            if (segmentSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Journal segment size must be at most " + Integer.MAX_VALUE + " bytes");
+            }
+            this.directory = directory;
+            this.segmentSize = (int) Math.max(segmentSize, HEADER_SIZE + RECORD_SIZE);
+            this.segmentAge = segmentAge;
+            final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            this.types = new byte[size];
+            this.times = new long[size];
+            this.msbs = new long[size];
+            this.lsbs = new long[size];
+            this.instruments = new byte[size];
+            this.mask = size - 1;
+            final Thread writer = new Thread(this::write, "auditor-journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Queue an event, or drop it if the queue is full. Never blocks.
+         *
+         * @param type       The kind of event.
+         * @param time       The time of the event, in milliseconds.
+         * @param msb        The most significant bits of the UUID of the musician.
+         * @param lsb        The least significant bits of the UUID of the musician.
+         * @param instrument The instrument of the musician.
+         * @return Whether the event was queued.
+         */
+        boolean append(Type type, long time, long msb, long lsb, Instrument instrument) {
+            long position = tail.get();
+            while (true) {
+                final long difference = sequences.get((int) (position & mask)) - position;
+                if (difference == 0 && tail.compareAndSet(position, position + 1)) {
+                    break;
+                } else if (difference < 0) { // The writer hasn't consumed this slot yet, the queue is full.
+                    dropped.increment();
+                    return false;
+                }
+                position = tail.get();
+            }
+            final int slot = (int) (position & mask);
+            types[slot] = (byte) (type.ordinal() + 1);
+            times[slot] = time;
+            msbs[slot] = msb;
+            lsbs[slot] = lsb;
+            instruments[slot] = (byte) instrument.ordinal();
+            sequences.lazySet(slot, position + 1); // Publishes the fields above to the writer.
+            return true;
+        }
+
+        /**
+         * A segment being written, mapped in full.
+         */
+        private record Segment(FileChannel channel, MappedByteBuffer buffer, long createdAt) {
+            /**
+             * Create a new segment file of the given size in a directory.
+             */
+            static Segment create(Path directory, int size, long createdAt) throws IOException {
+                final Path path = directory.resolve(String.format("%s%020d%s", PREFIX, createdAt, SUFFIX));
+                final var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(createdAt);
+                return new Segment(channel, buffer, createdAt);
+            }
+
+            /**
+             * Cut the file after the last record, flush it to disk and close it.
+             */
+            void close() throws IOException {
+                try (channel) {
+                    buffer.force();
+                    channel.truncate(buffer.position());
+                }
+            }
+        }
+
+        /**
+         * Write the queued events to the segments, forever.
+         */
+        private void write() {
+            Segment segment = null;
+            while (true) {
+                try {
+                    final long now = System.currentTimeMillis();
+                    if (segment != null && now - segment.createdAt() >= segmentAge) {
+                        segment.close();
+                        segment = null; // The next segment is only created once there is something to write.
+                    }
+                    int slot = (int) (head & mask);
+                    if (sequences.get(slot) != head + 1) {
+                        LockSupport.parkNanos(1_000_000); // Nothing to write, back off for a millisecond.
+                        continue;
+                    }
+                    if (segment == null) {
+                        Files.createDirectories(directory);
+                        segment = Segment.create(directory, segmentSize, now);
+                    }
+                    // Write the whole batch without looking at the clock again.
+                    do {
+                        if (segment.buffer().remaining() < RECORD_SIZE) {
+                            segment.close();
+                            segment = Segment.create(directory, segmentSize, Math.max(System.currentTimeMillis(), segment.createdAt() + 1));
+                        }
+                        final MappedByteBuffer buffer = segment.buffer();
+                        final int position = buffer.position();
+                        buffer.position(position + 1).putLong(times[slot]).putLong(msbs[slot]).putLong(lsbs[slot]).put(instruments[slot]);
+                        VarHandle.releaseFence(); // The type marks the record as complete for queries, so it goes last.
+                        buffer.put(position, types[slot]);
+                        sequences.lazySet(slot, head + mask + 1); // Give the slot back to the producers.
+                        head++;
+                        written.increment();
+                        slot = (int) (head & mask);
+                    } while (sequences.get(slot) == head + 1);
+                } catch (IOException | RuntimeException e) { // Any error, so that the writer thread never dies.
+                    System.err.println("Error writing the journal: " + e);
+                    if (segment != null) {
+                        // Keep what was written and release the file, a new segment is started on the next write.
+                        try {
+                            segment.close();
+                        } catch (IOException | RuntimeException ignored) {
+                            // Already reported, the segment may be the cause of the error.
+                        }
+                        segment = null;
+                    }
+                    LockSupport.parkNanos(1_000_000_000); // Let the queue fill and drop rather than spin on errors.
+                }
+            }
+        }
+    }
+
+    /**
+     * Time-range queries over the journal. Each segment gets a sparse index that holds the lowest and highest time of
+     * every block of records, so that a query only reads the blocks that may hold records of its range; the times of
+     * the records are those sent by the musicians, which are only roughly ordered, hence ranges rather than a sorted
+     * index. The indexes of the closed segments never change and are cached, along with a summary of each minute: the
+     * latest activity of each musician and instrument. Whole minutes of a range are read from the summaries, about one
+     * entry per musician instead of one record per heartbeat, and only the minutes at the ends of the range from the
+     * records. The cache is bounded in bytes and drops the least recently used indexes first, which are rebuilt from
+     * their segment when queried again. Segments are scanned in parallel and their partial results merged.
+     */
+    static class JournalQuery {
+        /**
+         * The number of records summarized by an index entry.
+         */
+        static final int BLOCK = 4096;
+
+        /**
+         * The length of a bucket of counts, in milliseconds.
+         */
+        static final long MINUTE = 60_000;
+
+        /**
+         * The maximum size of the cached indexes, in bytes.
+         */
+        static final long CACHE_SIZE = config("AUDITOR_JOURNAL_INDEX_CACHE", 64 << 20); // 64 MiB
+
+        private static final Instrument[] INSTRUMENTS = Instrument.values();
+
+        /**
+         * The sparse index of a segment.
+         *
+         * @param size      The size of the indexed file, to tell a cached index from a stale one.
+         * @param records   The number of records indexed.
+         * @param minTimes  The lowest time of each block.
+         * @param maxTimes  The highest time of each block.
+         * @param summaries The summaries of the minutes with activity in chronological order, or null for the segment
+         *                  still being written.
+         */
+        record SegmentIndex(long size, int records, long[] minTimes, long[] maxTimes, List<Summary> summaries) {
+            /**
+             * @return The approximate heap size of the index, in bytes.
+             */
+            long bytes() {
+                long bytes = 64 + 16L * minTimes.length;
+                for (final Summary summary : summaries) {
+                    bytes += 96 + 25L * summary.times().length;
+                }
+                return bytes;
+            }
+        }
+
+        /**
+         * The activity of a minute of a segment: the latest join or heartbeat of each musician with each instrument.
+         *
+         * @param minute      The start of the minute, in milliseconds.
+         * @param msbs        The most significant bits of the UUID of each musician.
+         * @param lsbs        The least significant bits of the UUID of each musician.
+         * @param times       The latest activity of each musician in the minute.
+         * @param instruments The instrument of each musician.
+         */
+        record Summary(long minute, long[] msbs, long[] lsbs, long[] times, byte[] instruments) {
+        }
+
+        /**
+         * A musician and instrument of a minute, while the summaries are built.
+         */
+        private record SummaryKey(long minute, long msb, long lsb, byte instrument) {
+        }
+
+        /**
+         * The number of musicians of each instrument active during a minute.
+         *
+         * @param minute The start of the minute, in milliseconds.
+         * @param counts The number of musicians of each instrument.
+         */
+        record Minute(long minute, Map<Instrument, Integer> counts) {
+        }
+
+        /**
+         * Receives the records of a segment.
+         */
+        interface Visitor {
+            void visit(byte type, long time, long msb, long lsb, byte instrument);
+        }
+
+        /**
+         * The cached indexes of the closed segments.
+         */
+        private static final IndexCache indexes = new IndexCache(CACHE_SIZE);
+
+        /**
+         * A cache of segment indexes bounded by their total size, in least recently used order.
+         */
+        static final class IndexCache {
+            /**
+             * The maximum total size of the indexes, in bytes.
+             */
+            private final long capacity;
+
+            /**
+             * The indexes, least recently used first.
+             */
+            private final LinkedHashMap<Path, SegmentIndex> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+            /**
+             * Guards the entries, as even a lookup reorders them.
+             */
+            private final ReentrantLock lock = new ReentrantLock();
+
+            /**
+             * The total size of the indexes, in bytes.
+             */
+            private long bytes;
+
+            /**
+             * Create a new cache.
+             *
+             * @param capacity The maximum total size of the indexes, in bytes.
+             */
+            IndexCache(long capacity) {
+                this.capacity = capacity;
+            }
+
+            /**
+             * @return The index of a segment, or null if it isn't cached.
+             */
+            SegmentIndex get(Path path) {
+                lock.lock();
+                try {
+                    return entries.get(path);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Cache the index of a segment, dropping the least recently used ones until the cache fits. An index larger
+             * than the whole cache is not kept.
+             */
+            void put(Path path, SegmentIndex index) {
+                final long size = index.bytes();
+                lock.lock();
+                try {
+                    final SegmentIndex previous = entries.remove(path);
+                    if (previous != null) {
+                        bytes -= previous.bytes();
+                    }
+                    if (size > capacity) {
+                        return;
+                    }
+                    entries.put(path, index);
+                    bytes += size;
+                    final var eldest = entries.values().iterator();
+                    while (bytes > capacity) {
+                        bytes -= eldest.next().bytes();
+                        eldest.remove();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            /**
+             * Drop the indexes of the segments that are not in a list, such as deleted ones.
+             */
+            void retain(Collection<Path> paths) {
+                lock.lock();
+                try {
+                    final var iterator = entries.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        final var entry = iterator.next();
+                        if (!paths.contains(entry.getKey())) {
+                            bytes -= entry.getValue().bytes();
+                            iterator.remove();
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Find the musicians that joined or sent a heartbeat between two times, with their last activity in the range.
+         *
+         * @param directory The directory of the segments.
+         * @param from      The start of the range, in milliseconds, inclusive.
+         * @param to        The end of the range, in milliseconds, inclusive.
+         * @return The musicians.
+         * @throws IOException If a segment can't be read.
+         */
+        static Collection<Musician> active(Path directory, long from, long to) throws IOException {
+            return query(directory, from, to, HashMap<UUID, Musician>::new, (active, type, time, msb, lsb, instrument) -> {
+                if (type != Journal.Type.expired.ordinal() + 1) {
+                    final var musician = new Musician(new UUID(msb, lsb), INSTRUMENTS[instrument], time);
+                    active.merge(musician.uuid(), musician, Main.JournalQuery::latest);
+                }
+            }, (left, right) -> {
+                right.forEach((uuid, musician) -> left.merge(uuid, musician, Main.JournalQuery::latest));
+                return left;
+            }).values();
+        }
+
+        /**
+         * Count the musicians of each instrument that joined or sent a heartbeat in each minute between two times.
+         *
+         * @param directory The directory of the segments.
+         * @param from      The start of the range, in milliseconds, inclusive.
+         * @param to        The end of the range, in milliseconds, inclusive.
+         * @return The counts of the minutes with activity, in chronological order.
+         * @throws IOException If a segment can't be read.
+         */
+        static List<Minute> counts(Path directory, long from, long to) throws IOException {
+            final Map<Long, Map<Instrument, Set<UUID>>> minutes = query(directory, from, to, HashMap<Long, Map<Instrument, Set<UUID>>>::new, (partial, type, time, msb, lsb, instrument) -> {
+                if (type != Journal.Type.expired.ordinal() + 1) {
+                    partial.computeIfAbsent(Math.floorDiv(time, MINUTE) * MINUTE, minute -> new EnumMap<>(Instrument.class))
+                            .computeIfAbsent(INSTRUMENTS[instrument], i -> new HashSet<>())
+                            .add(new UUID(msb, lsb));
+                }
+            }, (left, right) -> {
+                right.forEach((minute, instruments) -> {
+                    final var merged = left.computeIfAbsent(minute, m -> new EnumMap<>(Instrument.class));
+                    instruments.forEach((instrument, uuids) -> merged.computeIfAbsent(instrument, i -> new HashSet<>()).addAll(uuids));
+                });
+                return left;
+            });
+            final var counts = new ArrayList<Minute>(minutes.size());
+            new TreeMap<>(minutes).forEach((minute, instruments) -> {
+                final var count = new EnumMap<Instrument, Integer>(Instrument.class);
+                instruments.forEach((instrument, uuids) -> count.put(instrument, uuids.size()));
+                counts.add(new Minute(minute, count));
+            });
+            return counts;
+        }
+
+        /**
+         * @return The musician with the latest activity.
+         */
+        private static Musician latest(Musician a, Musician b) {
+            return b.lastActivity() > a.lastActivity() ? b : a;
+        }
+
+        /**
+         * Accumulates the records of a segment into a partial result.
+         */
+        interface Accumulator<R> {
+            void accept(R result, byte type, long time, long msb, long lsb, byte instrument);
+        }
+
+        /**
+         * Scan the segments in parallel, each into its own partial result, and merge the partial results. The whole
+         * minutes of the closed segments are accumulated from their summaries, as one heartbeat per musician and
+         * instrument at its latest activity, so the accumulator must only depend on the latest activity of each
+         * musician and instrument within a minute. Expiries are not summarized.
+         *
+         * @param directory  The directory of the segments.
+         * @param from       The start of the range, in milliseconds, inclusive.
+         * @param to         The end of the range, in milliseconds, inclusive.
+         * @param create     Creates an empty partial result.
+         * @param accumulate Adds a record of the range to a partial result.
+         * @param merge      Merges two partial results.
+         * @return The result.
+         * @throws IOException If a segment can't be read.
+         */
+        static <R> R query(Path directory, long from, long to, Supplier<R> create, Accumulator<R> accumulate, BinaryOperator<R> merge) throws IOException {
+            final List<Path> segments = segments(directory);
+            final Path newest = segments.isEmpty() ? null : segments.getLast();
+            indexes.retain(new HashSet<>(segments)); // Forget the segments deleted since.
+            try {
+                return segments.parallelStream().map(path -> {
+                    final R partial = create.get();
+                    try {
+                        scan(path, path.equals(newest), from, to, (type, time, msb, lsb, instrument) -> accumulate.accept(partial, type, time, msb, lsb, instrument));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return partial;
+                }).reduce(merge).orElseGet(create);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * @return The segment files of a directory, oldest first.
+         */
+        static List<Path> segments(Path directory) throws IOException {
+            if (!Files.isDirectory(directory)) {
+                return List.of();
+            }
+            try (final var files = Files.list(directory)) {
+                return files.filter(path -> {
+                    final String name = path.getFileName().toString();
+                    return name.startsWith(Journal.PREFIX) && name.endsWith(Journal.SUFFIX);
+                }).sorted().toList();
+            }
+        }
+
+        /**
+         * Visit the records of a segment whose time is in a range, reading only the blocks that may hold some. The
+         * whole minutes of a closed segment are visited from its summaries instead.
+         *
+         * @param path    The segment file.
+         * @param newest  Whether the segment may still be written, in which case its index is not cached.
+         * @param from    The start of the range, in milliseconds, inclusive.
+         * @param to      The end of the range, in milliseconds, inclusive.
+         * @param visitor Receives the records.
+         * @throws IOException If the segment can't be read.
+         */
+        static void scan(Path path, boolean newest, long from, long to, Visitor visitor) throws IOException {
+            try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < Journal.HEADER_SIZE) {
+                    return; // Just created.
+                }
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt(0) != Journal.MAGIC || buffer.getInt(4) != Journal.VERSION) {
+                    throw new IOException("Unknown journal format in " + path);
+                }
+                final SegmentIndex index = index(path, buffer, newest);
+                // The whole minutes of the range, from the first minute starting in it to the last one ending in it.
+                final long first = Math.ceilDiv(from, MINUTE) * MINUTE;
+                final long last = Math.floorMod(to, MINUTE) == MINUTE - 1 ? to : Math.floorDiv(to, MINUTE) * MINUTE - 1;
+                if (index.summaries() == null || first > last) {
+                    records(buffer, index, from, to, visitor);
+                    return;
+                }
+                final byte heartbeat = (byte) (Journal.Type.heartbeat.ordinal() + 1);
+                for (final Summary summary : index.summaries()) {
+                    if (summary.minute() < first || summary.minute() > last) {
+                        continue;
+                    }
+                    for (int i = 0; i < summary.times().length; i++) {
+                        visitor.visit(heartbeat, summary.times()[i], summary.msbs()[i], summary.lsbs()[i], summary.instruments()[i]);
+                    }
+                }
+                if (from < first) {
+                    records(buffer, index, from, first - 1, visitor);
+                }
+                if (last < to) {
+                    records(buffer, index, last + 1, to, visitor);
+                }
+            }
+        }
+
+        /**
+         * Visit the records of a segment whose time is in a range, from the blocks that may hold some.
+         */
+        private static void records(MappedByteBuffer buffer, SegmentIndex index, long from, long to, Visitor visitor) {
+            for (int block = 0; block < index.minTimes().length; block++) {
+                if (index.minTimes()[block] > to || index.maxTimes()[block] < from) {
+                    continue;
+                }
+                final int end = Math.min(index.records(), (block + 1) * BLOCK);
+                for (int record = block * BLOCK; record < end; record++) {
+                    final int offset = Journal.HEADER_SIZE + record * Journal.RECORD_SIZE;
+                    final long time = buffer.getLong(offset + 1);
+                    if (time >= from && time <= to) {
+                        visitor.visit(buffer.get(offset), time, buffer.getLong(offset + 9), buffer.getLong(offset + 17), buffer.get(offset + 25));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the index of a segment, from the cache or by reading every record. The summaries are only built for a
+         * closed segment, as they would be stale as soon as the next record is written.
+         */
+        private static SegmentIndex index(Path path, MappedByteBuffer buffer, boolean newest) {
+            final SegmentIndex cached = indexes.get(path);
+            if (!newest && cached != null && cached.size() == buffer.capacity()) {
+                return cached;
+            }
+            int records = 0;
+            final int capacity = (buffer.capacity() - Journal.HEADER_SIZE) / Journal.RECORD_SIZE;
+            while (records < capacity && buffer.get(Journal.HEADER_SIZE + records * Journal.RECORD_SIZE) != 0) {
+                records++;
+            }
+            VarHandle.acquireFence(); // Pairs with the fence of the writer, so the records counted are complete.
+            final int blocks = (records + BLOCK - 1) / BLOCK;
+            final long[] minTimes = new long[blocks];
+            final long[] maxTimes = new long[blocks];
+            Arrays.fill(minTimes, Long.MAX_VALUE);
+            Arrays.fill(maxTimes, Long.MIN_VALUE);
+            for (int record = 0; record < records; record++) {
+                final long time = buffer.getLong(Journal.HEADER_SIZE + record * Journal.RECORD_SIZE + 1);
+                minTimes[record / BLOCK] = Math.min(minTimes[record / BLOCK], time);
+                maxTimes[record / BLOCK] = Math.max(maxTimes[record / BLOCK], time);
+            }
+            final var index = new SegmentIndex(buffer.capacity(), records, minTimes, maxTimes, newest ? null : summarize(buffer, records));
+            if (!newest) {
+                indexes.put(path, index);
+            }
+            return index;
+        }
+
+        /**
+         * Summarize the minutes of a closed segment.
+         */
+        private static List<Summary> summarize(MappedByteBuffer buffer, int records) {
+            final var latest = new HashMap<SummaryKey, Long>();
+            for (int record = 0; record < records; record++) {
+                final int offset = Journal.HEADER_SIZE + record * Journal.RECORD_SIZE;
+                if (buffer.get(offset) == Journal.Type.expired.ordinal() + 1) {
+                    continue;
+                }
+                final long time = buffer.getLong(offset + 1);
+                final var key = new SummaryKey(Math.floorDiv(time, MINUTE) * MINUTE, buffer.getLong(offset + 9), buffer.getLong(offset + 17), buffer.get(offset + 25));
+                latest.merge(key, time, Math::max);
+            }
+            final var minutes = new TreeMap<Long, List<SummaryKey>>();
+            latest.keySet().forEach(key -> minutes.computeIfAbsent(key.minute(), minute -> new ArrayList<>()).add(key));
+            final var summaries = new ArrayList<Summary>(minutes.size());
+            minutes.forEach((minute, keys) -> {
+                final var summary = new Summary(minute, new long[keys.size()], new long[keys.size()], new long[keys.size()], new byte[keys.size()]);
+                for (int i = 0; i < keys.size(); i++) {
+                    final SummaryKey key = keys.get(i);
+                    summary.msbs()[i] = key.msb();
+                    summary.lsbs()[i] = key.lsb();
+                    summary.times()[i] = latest.get(key);
+                    summary.instruments()[i] = key.instrument();
+                }
+                summaries.add(summary);
+            });
+            return summaries;
+        }
+    }
+
+    /**
+     * A streaming JSON writer for lists of musicians. Each musician is encoded straight into a fixed-size buffer that
+     * is flushed to the output whenever it fills up, so the memory used doesn't depend on the number of musicians. The
+     * output is the same as Gson's, either compact or pretty printed.
+     */
+    static class MusicianWriter implements Consumer<Musician> {
+        /**
+         * Whether lists are pretty printed by default, as the auditor used to do. Compact output is about half the size.
+         */
+        static final boolean PRETTY = config("AUDITOR_JSON_PRETTY", 0) != 0;
+
+        /**
+         * The default size of the buffer, in bytes.
+         */
+        static final int BUFFER_SIZE = (int) config("AUDITOR_WRITE_BUFFER", 8192);
+
+        /**
+         * The maximum size of an encoded musician, so that a musician is never split across two buffers.
+         */
+        private static final int MAX_MUSICIAN_SIZE = 192;
+
+        /**
+         * The hex digits, indexed by value.
+         */
+        private static final byte[] DIGITS = "0123456789abcdef".getBytes(UTF_8);
+
+        /**
+         * The names of the instruments, indexed by ordinal.
+         */
+        private static final byte[][] NAMES = Arrays.stream(Instrument.values()).map(i -> i.name().getBytes(UTF_8)).toArray(byte[][]::new);
+
+        /**
+         * The constant parts of the output in one layout.
+         *
+         * @param uuid         Opens a musician, up to the uuid value.
+         * @param instrument   Closes the uuid value and opens the instrument value.
+         * @param lastActivity Closes the previous value and opens the lastActivity value.
+         * @param close        Closes a musician.
+         * @param end          Closes a non-empty list.
+         */
+        private record Layout(byte[] uuid, byte[] instrument, byte[] lastActivity, byte[] close, byte[] end) {
+            Layout(String uuid, String instrument, String lastActivity, String close, String end) {
+                this(uuid.getBytes(UTF_8), instrument.getBytes(UTF_8), lastActivity.getBytes(UTF_8), close.getBytes(UTF_8), end.getBytes(UTF_8));
+            }
+        }
+
+        private static final Layout COMPACT = new Layout("{\"uuid\":\"", "\",\"instrument\":\"", "\",\"lastActivity\":", "}", "]");
+        private static final Layout PRETTY_PRINTED = new Layout("\n  {\n    \"uuid\": \"", "\",\n    \"instrument\": \"", "\",\n    \"lastActivity\": ", "\n  }", "\n]");
+
+        /**
+         * The output to which the buffer is flushed.
+         */
+        private final OutputStream out;
+
+        /**
+         * The layout of the output.
+         */
+        private final Layout layout;
+
+        /**
+         * The buffer in which musicians are encoded.
+         */
+        private final byte[] buffer;
+
+        /**
+         * The position of the next byte in the buffer.
+         */
+        private int position;
+
+        /**
+         * The number of musicians written.
+         */
+        private int count;
+
+        /**
+         * Create a new writer and open the list.
+         *
+         * @param out        The output, which is neither flushed nor closed by the writer.
+         * @param bufferSize The size of the buffer, in bytes.
+         * @param pretty     Whether to pretty print the list.
+         */
+        MusicianWriter(OutputStream out, int bufferSize, boolean pretty) {
+            this.out = out;
+            this.layout = pretty ? PRETTY_PRINTED : COMPACT;
+            this.buffer = new byte[Math.max(bufferSize, MAX_MUSICIAN_SIZE)];
+            buffer[position++] = '[';
+        }
+
+        /**
+         * Write a musician to the list.
+         *
+         * @param musician The musician.
+         * @throws UncheckedIOException If the output fails.
+         */
+        @Override
+        public void accept(Musician musician) {
+            if (buffer.length - position < MAX_MUSICIAN_SIZE) {
+                flush();
+            }
+            if (count++ > 0) {
+                buffer[position++] = ',';
+            }
+            put(layout.uuid());
+            final long msb = musician.uuid().getMostSignificantBits();
+            final long lsb = musician.uuid().getLeastSignificantBits();
+            putHex(msb >>> 32, 8);
+            buffer[position++] = '-';
+            putHex(msb >>> 16, 4);
+            buffer[position++] = '-';
+            putHex(msb, 4);
+            buffer[position++] = '-';
+            putHex(lsb >>> 48, 4);
+            buffer[position++] = '-';
+            putHex(lsb, 12);
+            put(layout.instrument());
+            put(NAMES[musician.instrument().ordinal()]);
+            put(layout.lastActivity());
+            putLong(musician.lastActivity());
+            put(layout.close());
+        }
+
+        /**
+         * Close the list and flush the buffer.
+         *
+         * @return The number of musicians written.
+         * @throws IOException If the output fails.
+         */
+        int finish() throws IOException {
+            put(count > 0 ? layout.end() : COMPACT.end());
+            try {
+                flush();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return count;
+        }
+
+        private void flush() {
+            try {
+                out.write(buffer, 0, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+        }
+
+        private void put(byte[] bytes) {
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void putHex(long value, int digits) {
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = DIGITS[(int) value & 0xF];
+                value >>>= 4;
+            }
+            position += digits;
+        }
+
+        private void putLong(long value) {
+            if (value < 0) {
+                buffer[position++] = '-';
+            } else {
+                value = -value; // Work on negative values, which also cover Long.MIN_VALUE.
+            }
+            int digits = 1;
+            for (long rest = value; rest <= -10; rest /= 10) {
+                digits++;
+            }
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' - value % 10);
+                value /= 10;
+            }
+            position += digits;
+        }
+    }
+
+    /**
+     * A deserializer for the Musician record.
+     */
+    static class MusicianDeserializer implements JsonDeserializer<Musician> {
+        /**
+         * Deserialize a musician from a JSON element.
+         *
+         * @param jsonElement                The JSON element.
+         * @param type                       The type of the object.
+         * @param jsonDeserializationContext The context.
+         * @return A musician record.
+         * @throws JsonParseException If the JSON is invalid.
+         */
+        @Override
         public Musician deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
             JsonObject jsonObject = jsonElement.getAsJsonObject();
 
@@ -281,4 +3896,419 @@ public class Main {
             return new Musician(uuid, sound, lastActivity);
         }
     }
+
+    /**
+     * A streaming decoder for the Musician record. Reads the uuid, sound and timestamp fields straight from the
+     * datagram bytes without building an intermediate String or a JSON tree. A datagram it accepts gives the same
+     * record as {@link MusicianDeserializer}, but it rejects some datagrams that {@code Gson.fromJson} accepts:
+     * <ul>
+     *     <li>a timestamp that isn't a plain integer, where Gson also accepts a quoted, fractional or exponent number;</li>
+     *     <li>a uuid that isn't in canonical form, where UUID.fromString also accepts shortened groups;</li>
+     *     <li>a key, uuid or sound written with escapes, such as <code>"po&#92;u0075et"</code>, as they are compared as raw
+     *     bytes;</li>
+     *     <li>anything that only Gson's lenient mode, which fromJson always uses, accepts: unquoted or single-quoted
+     *     keys and strings, {@code ;} between members, {@code =} or {@code =>} after a key, and missing array
+     *     elements.</li>
+     * </ul>
+     * The other fields are skipped, but must be well-formed all the same, except that the escapes of their strings are
+     * not checked and bare words are taken as literals, as Gson does. Datagrams in the compact binary format are also
+     * accepted.
+     */
+    static class MusicianDecoder {
+        /**
+         * The keys of the fields that make up a musician, as raw bytes.
+         */
+        private static final byte[] UUID_KEY = "uuid".getBytes(UTF_8);
+        private static final byte[] SOUND_KEY = "sound".getBytes(UTF_8);
+        private static final byte[] TIMESTAMP_KEY = "timestamp".getBytes(UTF_8);
+
+        /**
+         * The sound of each instrument as raw bytes, indexed by ordinal.
+         */
+        private static final byte[][] SOUNDS = {
+                "ti-ta-ti".getBytes(UTF_8), "pouet".getBytes(UTF_8), "trulu".getBytes(UTF_8), "gzi-gzi".getBytes(UTF_8), "boum-boum".getBytes(UTF_8)
+        };
+
+        /**
+         * The first byte of a binary datagram. It can't start a JSON document, which makes the formats distinguishable.
+         */
+        static final byte BINARY_MAGIC = (byte) 0xDA;
+
+        /**
+         * The version of the binary format.
+         */
+        static final byte BINARY_VERSION = 1;
+
+        /**
+         * The size of a binary datagram: magic, version, 16-byte UUID, instrument ordinal and 8-byte timestamp.
+         */
+        static final int BINARY_SIZE = 2 + 16 + 1 + 8;
+
+        /**
+         * The instruments indexed by ordinal, cached to avoid cloning the array on every binary datagram.
+         */
+        private static final Instrument[] INSTRUMENTS = Instrument.values();
+
+        /**
+         * Decode a musician from a datagram into a reusable holder, so that no object is allocated, detecting whether
+         * it is encoded in JSON or in the binary format.
+         *
+         * @param data   The buffer that contains the datagram.
+         * @param offset The offset of the datagram in the buffer.
+         * @param length The length of the datagram.
+         * @param into   The holder that receives the fields.
+         * @throws JsonParseException If the datagram is invalid or a field is missing.
+         */
+        static void decode(byte[] data, int offset, int length, Decoded into) throws JsonParseException {
+            if (length > 0 && data[offset] == BINARY_MAGIC) {
+                decodeBinary(data, offset, length, into);
+            } else {
+                decodeJson(data, offset, length, into);
+            }
+        }
+
+        /**
+         * The fields of a decoded musician, with the UUID as two longs. Reused for every datagram of a thread.
+         */
+        static final class Decoded {
+            long msb;
+            long lsb;
+            Instrument instrument;
+            long lastActivity;
+        }
+
+        /**
+         * Decode a musician from the binary format. All multibyte values are big-endian.
+         *
+         * @param data   The buffer that contains the datagram.
+         * @param offset The offset of the datagram in the buffer.
+         * @param length The length of the datagram.
+         * @param into   The holder that receives the fields.
+         * @throws JsonParseException If the datagram is truncated, has an unknown version or an unknown instrument.
+         */
+        static void decodeBinary(byte[] data, int offset, int length, Decoded into) throws JsonParseException {
+            if (length != BINARY_SIZE || data[offset] != BINARY_MAGIC) {
+                throw new JsonParseException("Invalid binary datagram");
+            } else if (data[offset + 1] != BINARY_VERSION) {
+                throw new JsonParseException("Unsupported binary version " + data[offset + 1]);
+            }
+            final int ordinal = data[offset + 18];
+            if (ordinal < 0 || ordinal >= INSTRUMENTS.length) {
+                throw new JsonParseException("Unknown instrument " + ordinal);
+            }
+            into.msb = readLong(data, offset + 2);
+            into.lsb = readLong(data, offset + 10);
+            into.instrument = INSTRUMENTS[ordinal];
+            into.lastActivity = readLong(data, offset + 19);
+        }
+
+        /**
+         * Read a big-endian long from a byte array.
+         */
+        private static long readLong(byte[] data, int pos) {
+            long value = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                value = (value << 8) | (data[pos + i] & 0xFF);
+            }
+            return value;
+        }
+
+        /**
+         * Decode a musician from a JSON object encoded in a byte array.
+         *
+         * @param data   The buffer that contains the JSON object.
+         * @param offset The offset of the object in the buffer.
+         * @param length The length of the object.
+         * @param into   The holder that receives the fields.
+         * @throws JsonParseException If the JSON is invalid or a field is missing.
+         */
+        static void decodeJson(byte[] data, int offset, int length, Decoded into) throws JsonParseException {
+            final int end = offset + length;
+            boolean hasUuid = false;
+            Instrument instrument = null;
+            long lastActivity = 0;
+            boolean hasTimestamp = false;
+
+            int pos = expect(data, skipWhitespace(data, offset, end), end, '{');
+            pos = skipWhitespace(data, pos, end);
+            if (pos < end && data[pos] == '}') {
+                throw new JsonParseException("Missing musician fields");
+            }
+            while (true) {
+                // Key.
+                final int keyStart = expect(data, pos, end, '"');
+                final int keyEnd = scanString(data, keyStart, end);
+                pos = skipWhitespace(data, expect(data, skipWhitespace(data, keyEnd + 1, end), end, ':'), end);
+
+                // Value.
+                if (matches(data, keyStart, keyEnd, UUID_KEY)) {
+                    final int valueStart = expect(data, pos, end, '"');
+                    pos = scanString(data, valueStart, end);
+                    into.msb = parseUuid(data, valueStart, pos, 0);
+                    into.lsb = parseUuid(data, valueStart, pos, 19);
+                    hasUuid = true;
+                    pos++;
+                } else if (matches(data, keyStart, keyEnd, SOUND_KEY)) {
+                    final int valueStart = expect(data, pos, end, '"');
+                    pos = scanString(data, valueStart, end);
+                    instrument = instrumentOf(data, valueStart, pos);
+                    pos++;
+                } else if (matches(data, keyStart, keyEnd, TIMESTAMP_KEY)) {
+                    final int valueEnd = scanNumber(data, pos, end);
+                    lastActivity = parseLong(data, pos, valueEnd);
+                    hasTimestamp = true;
+                    pos = valueEnd;
+                } else {
+                    pos = skipValue(data, pos, end);
+                }
+
+                // Separator.
+                pos = skipWhitespace(data, pos, end);
+                if (pos >= end) {
+                    throw new JsonParseException("Unterminated object");
+                } else if (data[pos] == ',') {
+                    pos = skipWhitespace(data, pos + 1, end);
+                } else if (data[pos] == '}') {
+                    break;
+                } else {
+                    throw new JsonParseException("Unexpected character at offset " + (pos - offset));
+                }
+            }
+            if (skipWhitespace(data, pos + 1, end) != end) { // Gson rejects anything after the object too.
+                throw new JsonParseException("Unexpected content after the object");
+            }
+
+            if (!hasUuid || instrument == null || !hasTimestamp) {
+                throw new JsonParseException("Missing musician fields");
+            }
+            into.instrument = instrument;
+            into.lastActivity = lastActivity;
+        }
+
+        /**
+         * Skip any JSON whitespace.
+         *
+         * @return The position of the next non-whitespace byte.
+         */
+        private static int skipWhitespace(byte[] data, int pos, int end) {
+            while (pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\n' || data[pos] == '\r')) {
+                pos++;
+            }
+            return pos;
+        }
+
+        /**
+         * Check that the byte at the given position is the expected one.
+         *
+         * @return The position after the expected byte.
+         * @throws JsonParseException If the byte doesn't match.
+         */
+        private static int expect(byte[] data, int pos, int end, char expected) throws JsonParseException {
+            if (pos >= end || data[pos] != expected) {
+                throw new JsonParseException("Expected '" + expected + "'");
+            }
+            return pos + 1;
+        }
+
+        /**
+         * Find the closing quote of a string whose content starts at the given position.
+         *
+         * @return The position of the closing quote.
+         * @throws JsonParseException If the string is unterminated.
+         */
+        private static int scanString(byte[] data, int pos, int end) throws JsonParseException {
+            while (pos < end) {
+                if (data[pos] == '"') {
+                    return pos;
+                } else if (data[pos] == '\\') {
+                    pos++; // Skip the escaped character.
+                }
+                pos++;
+            }
+            throw new JsonParseException("Unterminated string");
+        }
+
+        /**
+         * Check whether a string slice is equal to the given key.
+         */
+        private static boolean matches(byte[] data, int start, int end, byte[] key) {
+            return Arrays.equals(data, start, end, key, 0, key.length);
+        }
+
+        /**
+         * Find the instrument that makes a sound, straight from its bytes. The length and first byte are enough to tell
+         * the five sounds apart, and a final comparison rejects anything else.
+         *
+         * @param data  The buffer that contains the sound.
+         * @param start The offset of the first byte of the sound.
+         * @param end   The offset after the last byte of the sound.
+         * @return The instrument.
+         * @throws JsonParseException If the sound matches no instrument.
+         */
+        static Instrument instrumentOf(byte[] data, int start, int end) throws JsonParseException {
+            final int length = end - start;
+            final Instrument candidate = length == 0 ? null : switch (length << 8 | data[start] & 0xFF) {
+                case 8 << 8 | 't' -> Instrument.piano;
+                case 5 << 8 | 'p' -> Instrument.trumpet;
+                case 5 << 8 | 't' -> Instrument.flute;
+                case 7 << 8 | 'g' -> Instrument.violin;
+                case 9 << 8 | 'b' -> Instrument.drum;
+                default -> null;
+            };
+            if (candidate == null || !matches(data, start, end, SOUNDS[candidate.ordinal()])) {
+                throw new JsonParseException("Unknown sound");
+            }
+            return candidate;
+        }
+
+        /**
+         * Parse one half of a UUID in its canonical 36-character form, such as aa7d8cb3-a15f-4f06-a0eb-b8feb6244a60,
+         * straight from its bytes. Unlike UUID.fromString, the shortened forms are not accepted.
+         *
+         * @param data  The buffer that contains the UUID.
+         * @param start The offset of the first character of the UUID.
+         * @param end   The offset after the last character of the UUID.
+         * @param half  0 for the most significant bits, 19 for the least significant bits.
+         * @return The bits of the half.
+         * @throws JsonParseException If the UUID is not in canonical form.
+         */
+        static long parseUuid(byte[] data, int start, int end, int half) throws JsonParseException {
+            if (end - start != 36 || data[start + 8] != '-' || data[start + 13] != '-' || data[start + 18] != '-' || data[start + 23] != '-') {
+                throw new JsonParseException("Invalid UUID");
+            }
+            // Only the hex positions of the half are read, so a dash anywhere else is rejected as a non-hex digit.
+            final byte[] positions = half == 0 ? MSB_DIGITS : LSB_DIGITS;
+            long value = 0;
+            for (final byte position : positions) {
+                final int digit = HEX[data[start + position] & 0xFF];
+                if (digit < 0) {
+                    throw new JsonParseException("Invalid UUID");
+                }
+                value = value << 4 | digit;
+            }
+            return value;
+        }
+
+        /**
+         * The offsets of the 16 hex digits of the most significant bits in a canonical UUID, around the dashes at 8 and 13.
+         */
+        private static final byte[] MSB_DIGITS = {0, 1, 2, 3, 4, 5, 6, 7, 9, 10, 11, 12, 14, 15, 16, 17};
+
+        /**
+         * The offsets of the 16 hex digits of the least significant bits in a canonical UUID, around the dash at 23.
+         */
+        private static final byte[] LSB_DIGITS = {19, 20, 21, 22, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35};
+
+        /**
+         * The value of each hex digit, indexed by byte, or -1 for bytes that are not hex digits.
+         */
+        private static final byte[] HEX = new byte[256];
+
+        static {
+            Arrays.fill(HEX, (byte) -1);
+            for (int i = 0; i < 10; i++) {
+                HEX['0' + i] = (byte) i;
+            }
+            for (int i = 0; i < 6; i++) {
+                HEX['a' + i] = (byte) (10 + i);
+                HEX['A' + i] = (byte) (10 + i);
+            }
+        }
+
+        /**
+         * Find the end of a number that starts at the given position.
+         *
+         * @return The position after the last byte of the number.
+         */
+        private static int scanNumber(byte[] data, int pos, int end) {
+            while (pos < end && (data[pos] == '-' || data[pos] == '+' || data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E' || (data[pos] >= '0' && data[pos] <= '9'))) {
+                pos++;
+            }
+            return pos;
+        }
+
+        /**
+         * Parse an integer number slice into a long.
+         *
+         * @throws JsonParseException If the slice is not an integer that fits in a long.
+         */
+        private static long parseLong(byte[] data, int start, int end) throws JsonParseException {
+            final boolean negative = start < end && data[start] == '-';
+            int pos = negative ? start + 1 : start;
+            if (pos >= end) {
+                throw new JsonParseException("Expected a number");
+            }
+            long value = 0;
+            for (; pos < end; pos++) {
+                final int digit = data[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new JsonParseException("Expected an integer");
+                }
+                // Accumulate negatively so that Long.MIN_VALUE can be represented.
+                if (value < (Long.MIN_VALUE + digit) / 10) {
+                    throw new JsonParseException("Number out of range");
+                }
+                value = value * 10 - digit;
+            }
+            if (!negative && value == Long.MIN_VALUE) {
+                throw new JsonParseException("Number out of range");
+            }
+            return negative ? value : -value;
+        }
+
+        /**
+         * Skip a JSON value of any type, including nested objects and arrays. Separators are checked as strictly as the
+         * fields of the musician: members and elements must be separated by commas, and every key followed by a colon.
+         * Nested values recurse, at most once per byte of the datagram.
+         *
+         * @return The position after the value.
+         * @throws JsonParseException If the value is malformed.
+         */
+        private static int skipValue(byte[] data, int pos, int end) throws JsonParseException {
+            pos = skipWhitespace(data, pos, end);
+            if (pos >= end) {
+                throw new JsonParseException("Unexpected end of input");
+            }
+            final byte b = data[pos];
+            if (b == '"') {
+                return scanString(data, pos + 1, end) + 1;
+            } else if (b == '{') {
+                pos = skipWhitespace(data, pos + 1, end);
+                if (pos < end && data[pos] == '}') {
+                    return pos + 1;
+                }
+                while (true) {
+                    pos = scanString(data, expect(data, pos, end, '"'), end) + 1;
+                    pos = expect(data, skipWhitespace(data, pos, end), end, ':');
+                    pos = skipWhitespace(data, skipValue(data, pos, end), end);
+                    if (pos >= end || data[pos] != ',') {
+                        return expect(data, pos, end, '}');
+                    }
+                    pos = skipWhitespace(data, pos + 1, end);
+                }
+            } else if (b == '[') {
+                pos = skipWhitespace(data, pos + 1, end);
+                if (pos < end && data[pos] == ']') {
+                    return pos + 1;
+                }
+                while (true) {
+                    pos = skipWhitespace(data, skipValue(data, pos, end), end);
+                    if (pos >= end || data[pos] != ',') {
+                        return expect(data, pos, end, ']');
+                    }
+                    pos++;
+                }
+            } else {
+                // Number or literal (true, false, null).
+                final int start = pos;
+                while (pos < end && ((data[pos] >= 'a' && data[pos] <= 'z') || data[pos] == '-' || data[pos] == '+' || data[pos] == '.' || (data[pos] >= '0' && data[pos] <= '9') || data[pos] == 'E')) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw new JsonParseException("Unexpected character '" + (char) b + "'");
+                }
+                return pos;
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package ch.heig.dai.lab.udp.auditor;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares the Gson deserializer, which creates a musician record, with the streaming decoder, which fills the holder
+ * reused by the listener, on the datagrams sent by musicians.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecoderBenchmark {
+    /**
+     * The deserializer used by the auditor before the streaming decoder.
+     */
+    private final Gson gson = new GsonBuilder().registerTypeAdapter(Main.Musician.class, new Main.MusicianDeserializer()).create();
+
+    /**
+     * A JSON datagram, as sent by a musician.
+     */
+    private byte[] json;
+
+    /**
+     * The same datagram in the binary format.
+     */
+    private byte[] binary;
+
+    /**
+     * The holder reused by the listener threads.
+     */
+    private final Main.MusicianDecoder.Decoded decoded = new Main.MusicianDecoder.Decoded();
+
+    @Setup
+    public void setup() {
+        final UUID uuid = UUID.randomUUID();
+        final long timestamp = System.currentTimeMillis();
+        json = ("{\"uuid\":\"" + uuid + "\",\"sound\":\"ti-ta-ti\",\"timestamp\":" + timestamp + "}").getBytes(UTF_8);
+        binary = ByteBuffer.allocate(Main.MusicianDecoder.BINARY_SIZE)
+                .put(Main.MusicianDecoder.BINARY_MAGIC)
+                .put(Main.MusicianDecoder.BINARY_VERSION)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .put((byte) 0)
+                .putLong(timestamp)
+                .array();
+    }
+
+    @Benchmark
+    public Main.Musician deserializer() {
+        return gson.fromJson(new String(json, 0, json.length, UTF_8), Main.Musician.class);
+    }
+
+    @Benchmark
+    public long decoderJson() {
+        Main.MusicianDecoder.decode(json, 0, json.length, decoded);
+        return decoded.msb ^ decoded.lsb ^ decoded.lastActivity;
+    }
+
+    @Benchmark
+    public long decoderBinary() {
+        Main.MusicianDecoder.decode(binary, 0, binary.length, decoded);
+        return decoded.msb ^ decoded.lsb ^ decoded.lastActivity;
+    }
+}
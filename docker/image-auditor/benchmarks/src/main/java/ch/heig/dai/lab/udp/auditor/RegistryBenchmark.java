@@ -0,0 +1,71 @@
+package ch.heig.dai.lab.udp.auditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures heartbeats of known musicians going through the listener, from the decoded datagram to the registry
+ * upsert, with several threads competing for the same entries. The datagrams are in the binary format, so that the
+ * decoding costs little next to the update.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    /**
+     * The number of known musicians. Fewer musicians means more contention on each entry.
+     */
+    @Param({"100", "10000", "1000000"})
+    public int size;
+
+    /**
+     * The heartbeats to replay, one datagram per musician.
+     */
+    private byte[][] heartbeats;
+
+    /**
+     * The holder reused by each listener thread.
+     */
+    @State(Scope.Thread)
+    public static class Holder {
+        final Main.MusicianDecoder.Decoded decoded = new Main.MusicianDecoder.Decoded();
+    }
+
+    @Setup
+    public void setup() {
+        final String[] sounds = {"ti-ta-ti", "pouet", "trulu", "gzi-gzi", "boum-boum"};
+        final long now = System.currentTimeMillis();
+        heartbeats = new byte[size][];
+        for (int i = 0; i < size; i++) {
+            final UUID uuid = UUID.randomUUID();
+            Main.musicians.upsert(new Main.Musician(uuid, sounds[i % sounds.length], now)); // Known musicians, so the update never logs.
+            heartbeats[i] = ByteBuffer.allocate(Main.MusicianDecoder.BINARY_SIZE)
+                    .put(Main.MusicianDecoder.BINARY_MAGIC)
+                    .put(Main.MusicianDecoder.BINARY_VERSION)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .put((byte) (i % sounds.length)) // Same instrument, the sounds are in ordinal order.
+                    .putLong(now)
+                    .array();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Main.musicians.clear();
+    }
+
+    @Benchmark
+    public void handle(Holder holder) {
+        final byte[] heartbeat = heartbeats[ThreadLocalRandom.current().nextInt(size)];
+        Main.RunnableListener.handle(heartbeat, 0, heartbeat.length, holder.decoded, System.nanoTime());
+    }
+}
@@ -0,0 +1,70 @@
+package ch.heig.dai.lab.udp.auditor;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Measures the serialization of the list of musicians sent to TCP clients, with Gson and with the streaming writer
+ * that sends the same bytes without building the whole list in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    /**
+     * The serializer configured as in the auditor.
+     */
+    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * The number of musicians in the list.
+     */
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    /**
+     * The musicians to serialize.
+     */
+    private List<Main.Musician> musicians;
+
+    @Setup
+    public void setup() {
+        final long now = System.currentTimeMillis();
+        musicians = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            musicians.add(new Main.Musician(UUID.randomUUID(), "trulu", now));
+        }
+    }
+
+    @Benchmark
+    public byte[] toJson() {
+        return gson.toJson(musicians).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public int writer() throws IOException {
+        final var writer = new Main.MusicianWriter(OutputStream.nullOutputStream(), Main.MusicianWriter.BUFFER_SIZE, true);
+        musicians.forEach(writer);
+        return writer.finish();
+    }
+
+    @Benchmark
+    public int writerCompact() throws IOException {
+        final var writer = new Main.MusicianWriter(OutputStream.nullOutputStream(), Main.MusicianWriter.BUFFER_SIZE, false);
+        musicians.forEach(writer);
+        return writer.finish();
+    }
+}
@@ -0,0 +1,83 @@
+package ch.heig.dai.lab.udp.auditor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one watcher tick while every musician stays active, which is the common case: the full scan the watcher
+ * used to do against the timing wheel it uses now.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WatcherBenchmark {
+    /**
+     * The time between two ticks, as in the watcher.
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * The inactivity timeout, as in the watcher.
+     */
+    private static final long INACTIVE_TIMEOUT = 5000;
+
+    /**
+     * The number of active musicians.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * The musicians, with their last activity spread over the timeout so that the wheel buckets are even.
+     */
+    private ConcurrentHashMap<UUID, Main.Musician> musicians;
+
+    /**
+     * The timing wheel, with every musician scheduled.
+     */
+    private Main.ExpiryWheel wheel;
+
+    /**
+     * The time at which the musicians were set up. The full scan always runs at this time, so that no musician ever
+     * expires and every invocation scans the whole map.
+     */
+    private long start;
+
+    /**
+     * A simulated clock, advanced by one tick per wheel invocation.
+     */
+    private long now;
+
+    @Setup
+    public void setup() {
+        start = System.currentTimeMillis();
+        now = start;
+        musicians = new ConcurrentHashMap<>(size);
+        wheel = new Main.ExpiryWheel(TICK, now);
+        for (int i = 0; i < size; i++) {
+            final var musician = new Main.Musician(UUID.randomUUID(), "pouet", now - i % INACTIVE_TIMEOUT);
+            musicians.put(musician.uuid(), musician);
+            wheel.schedule(musician.uuid().getMostSignificantBits(), musician.uuid().getLeastSignificantBits(), musician.lastActivity() + INACTIVE_TIMEOUT);
+        }
+    }
+
+    @Benchmark
+    public boolean fullScan() {
+        final long tick = start;
+        return musicians.values().removeIf(m -> tick - m.lastActivity() >= INACTIVE_TIMEOUT);
+    }
+
+    @Benchmark
+    public int wheel() {
+        now += TICK;
+        final long tick = now;
+        // Every due musician has sent a heartbeat in the meantime, so it is rescheduled instead of expired.
+        return wheel.advance(tick, (msb, lsb) -> musicians.containsKey(new UUID(msb, lsb)) ? tick + INACTIVE_TIMEOUT : -1);
+    }
+}
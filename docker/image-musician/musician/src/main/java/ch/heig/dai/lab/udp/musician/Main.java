@@ -6,8 +6,15 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -34,6 +41,26 @@ public class Main {
      */
     private static final int PORT = 9904;
 
+    /**
+     * The time between two heartbeats of a musician, in milliseconds.
+     */
+    private static final long PERIOD = 1000; // 1 second
+
+    /**
+     * The first byte of a binary datagram. It can't start a JSON document, which lets the auditor tell formats apart.
+     */
+    private static final byte BINARY_MAGIC = (byte) 0xDA;
+
+    /**
+     * The version of the binary format.
+     */
+    private static final byte BINARY_VERSION = 1;
+
+    /**
+     * The size of a binary datagram: magic, version, 16-byte UUID, instrument ordinal and 8-byte timestamp.
+     */
+    private static final int BINARY_SIZE = 2 + 16 + 1 + 8;
+
     /**
      * The instruments that a musician can play.
      */
@@ -49,8 +76,13 @@ public class Main {
      * The main entry point of the program.
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar musician.jar [piano|trumpet|flute|violin|drum]");
+        if (args.length >= 2 && args[0].equals("swarm")) {
+            swarm(args);
+            return;
+        }
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java -jar musician.jar [piano|trumpet|flute|violin|drum] [json|binary] [random-phase]");
+            System.out.println("       java -jar musician.jar swarm <musicians> [rate] [jitter] [instruments|all] [json|binary]");
             System.exit(1);
         }
 
@@ -63,31 +95,336 @@ public class Main {
             System.exit(1);
         }
 
+        // Parse the optional wire format, JSON being the default.
+        final boolean binary = args.length >= 2 && parseBinary(args[1]);
+
+        // Parse the optional phase randomization, which spreads musicians started together over the period.
+        boolean randomPhase = false;
+        if (args.length == 3) {
+            if (!args[2].equals("random-phase")) {
+                System.err.println("Invalid option.");
+                System.exit(1);
+            }
+            randomPhase = true;
+        }
+
         // Create the musician socket.
+        final var scheduler = Executors.newSingleThreadScheduledExecutor();
         try (DatagramSocket socket = new DatagramSocket()) {
             final InetSocketAddress dest_address = new InetSocketAddress(ADDRESS, PORT);
-            final UUID uuid = UUID.randomUUID();
-
-            // Send the musician's data every second.
-            while (true) {
-                final var data = new Musician(uuid, instrument);
-                final var payload = data.toBytes();
-                final var packet = new DatagramPacket(payload, payload.length, dest_address);
+            final var heartbeat = new Heartbeat(UUID.randomUUID(), instrument, binary);
+            final var packet = new DatagramPacket(heartbeat.bytes(), 0, dest_address);
 
-                socket.send(packet);
-                System.out.println("Sent: " + data);
-                Thread.sleep(1000);
-            }
+            // Send the musician's data every second, reusing the same buffer and packet. The rate is fixed, so the time
+            // taken to send doesn't accumulate into the period.
+            final long phase = randomPhase ? ThreadLocalRandom.current().nextLong(PERIOD) : 0;
+            scheduler.scheduleAtFixedRate(() -> {
+                try {
+                    packet.setLength(heartbeat.encode(System.currentTimeMillis()).limit());
+                    socket.send(packet);
+                    System.out.println("Sent: " + heartbeat);
+                } catch (IOException e) { // Keep playing, a single failed send must not cancel the schedule.
+                    System.err.println(e.getMessage());
+                }
+            }, phase, PERIOD, TimeUnit.MILLISECONDS);
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         } catch (IOException e) {
             System.err.println(e.getMessage());
         } catch (InterruptedException e) {
             System.err.println(e.getMessage());
             System.exit(1);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse a wire format argument, exiting on an invalid one.
+     *
+     * @param format Either "json" or "binary".
+     * @return Whether the binary format was chosen.
+     */
+    private static boolean parseBinary(String format) {
+        switch (format) {
+            case "json" -> {
+                return false;
+            }
+            case "binary" -> {
+                return true;
+            }
+            default -> {
+                System.err.println("Invalid format.");
+                System.exit(1);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Parse the swarm arguments and run the swarm: swarm &lt;musicians&gt; [rate] [jitter] [instruments|all] [json|binary].
+     * The rate is the number of heartbeats per musician per second, at most one per millisecond, the jitter the
+     * fraction of the period by which each heartbeat may be randomly shifted, and the instruments a comma-separated
+     * mix in which repeating an instrument makes it more frequent.
+     *
+     * @param args The command line arguments, starting with "swarm".
+     */
+    private static void swarm(String[] args) {
+        int count = 0;
+        double rate = 1;
+        double jitter = 0;
+        Instrument[] mix = Instrument.values();
+        boolean binary = false;
+        try {
+            count = Integer.parseInt(args[1]);
+            if (args.length > 2) {
+                rate = Double.parseDouble(args[2]);
+            }
+            if (args.length > 3) {
+                jitter = Double.parseDouble(args[3]);
+            }
+            if (args.length > 4 && !args[4].equals("all")) {
+                mix = Arrays.stream(args[4].split(",")).map(Instrument::valueOf).toArray(Instrument[]::new);
+            }
+            if (args.length > 5) {
+                binary = parseBinary(args[5]);
+            }
+        } catch (IllegalArgumentException e) { // Includes NumberFormatException.
+            System.err.println("Invalid swarm argument: " + e.getMessage());
+            System.exit(1);
+        }
+        if (count <= 0 || rate <= 0 || rate > Swarm.MAX_RATE || jitter < 0 || jitter >= 1) {
+            System.err.println("The swarm needs at least one musician, a rate in (0, " + (int) Swarm.MAX_RATE + "] and a jitter in [0, 1).");
+            System.exit(1);
+        }
+
+        try {
+            new Swarm(count, rate, jitter, mix, binary).run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
         }
     }
 
     /**
-     * The instrument that a musician plays.
+     * Many musicians simulated from a single process, to load-test an auditor. All musicians share one channel. Their
+     * heartbeats are scheduled in a timing wheel of one-millisecond slots, spread over the period so that they don't
+     * all play at once. The heartbeats of a slot are sent back to back, one send each, as Java has no way to hand
+     * several datagrams to the kernel at once.
+     */
+    private static class Swarm {
+        /**
+         * The duration of a slot of the timing wheel, in nanoseconds.
+         */
+        private static final long SLOT = 1_000_000; // 1 millisecond
+
+        /**
+         * The highest rate, in heartbeats per musician per second. A musician plays at most once per slot.
+         */
+        static final double MAX_RATE = 1e9 / SLOT;
+
+        private final Heartbeat[] heartbeats;
+        private final double jitter;
+        /**
+         * The number of slots between two heartbeats of a musician.
+         */
+        private final int period;
+
+        /**
+         * The musicians due in each slot, and the number of musicians in each slot.
+         */
+        private final int[][] slots;
+        private final int[] sizes;
+
+        /**
+         * Create a new swarm, with musicians at random phases.
+         *
+         * @param count  The number of musicians.
+         * @param rate   The number of heartbeats per musician per second.
+         * @param jitter The fraction of the period by which each heartbeat may be randomly shifted.
+         * @param mix    The instruments to pick from.
+         * @param binary Whether to use the binary format.
+         */
+        private Swarm(int count, double rate, double jitter, Instrument[] mix, boolean binary) {
+            final var random = ThreadLocalRandom.current();
+            this.heartbeats = new Heartbeat[count];
+            this.jitter = jitter;
+            this.period = (int) Math.max(1, Math.round(1e9 / rate / SLOT));
+            // A jittered heartbeat is at most one period and a fraction ahead, so two periods always fit.
+            this.slots = new int[2 * period + 1][];
+            this.sizes = new int[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new int[Math.max(4, 2 * count / period)];
+            }
+            for (int i = 0; i < count; i++) {
+                heartbeats[i] = new Heartbeat(UUID.randomUUID(), mix[random.nextInt(mix.length)], binary);
+                add(random.nextInt(period), i);
+            }
+        }
+
+        /**
+         * Add a musician to a slot, growing the slot if needed.
+         */
+        private void add(int slot, int musician) {
+            if (sizes[slot] == slots[slot].length) {
+                slots[slot] = Arrays.copyOf(slots[slot], sizes[slot] * 2);
+            }
+            slots[slot][sizes[slot]++] = musician;
+        }
+
+        /**
+         * Send heartbeats forever. When the sender falls behind, slots are sent back to back until it catches up.
+         */
+        private void run() throws IOException {
+            System.out.println("Starting swarm of " + heartbeats.length + " musicians, one heartbeat every " + period + " ms each");
+            try (final var channel = DatagramChannel.open()) {
+                final InetSocketAddress dest_address = new InetSocketAddress(ADDRESS, PORT);
+                final var random = ThreadLocalRandom.current();
+                final int spread = (int) (period * jitter);
+                final long start = System.nanoTime();
+                long sent = 0;
+                long nextReport = start + 1_000_000_000L;
+                for (long tick = 0; ; tick++) {
+                    final long deadline = start + tick * SLOT;
+                    long now;
+                    while ((now = System.nanoTime()) < deadline) {
+                        LockSupport.parkNanos(deadline - now);
+                    }
+
+                    final int slot = (int) (tick % slots.length);
+                    final int[] due = slots[slot];
+                    final int size = sizes[slot];
+                    sizes[slot] = 0; // Musicians are never rescheduled into the slot being sent.
+                    final long timestamp = System.currentTimeMillis(); // Shared by the whole slot.
+                    for (int i = 0; i < size; i++) {
+                        final int musician = due[i];
+                        channel.send(heartbeats[musician].encode(timestamp), dest_address);
+                        final int shift = spread == 0 ? 0 : random.nextInt(-spread, spread + 1);
+                        add((int) ((tick + Math.max(1, period + shift)) % slots.length), musician);
+                    }
+                    sent += size;
+
+                    if (now >= nextReport) {
+                        System.out.println("Swarm: sent " + sent + " heartbeats in the last second");
+                        sent = 0;
+                        nextReport += 1_000_000_000L;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A reusable heartbeat datagram. The uuid and sound never change, so the payload is serialized once and only the
+     * timestamp is patched into the same buffer before each send, which avoids any allocation per heartbeat.
+     */
+    private static class Heartbeat {
+        /**
+         * The maximum number of digits of a positive long.
+         */
+        private static final int MAX_DIGITS = 19;
+
+        private final UUID uuid;
+        private final Instrument instrument;
+        private final boolean binary;
+
+        /**
+         * The payload. For JSON, it is the serialized musician up to the timestamp, which is followed by its digits and
+         * the closing brace. For the binary format, the timestamp is in the last eight bytes.
+         */
+        private final byte[] bytes;
+
+        /**
+         * A buffer that wraps the payload.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * The offset at which the timestamp is written.
+         */
+        private final int timestampOffset;
+
+        /**
+         * The last encoded timestamp, only used for logging.
+         */
+        private long timestamp;
+
+        /**
+         * Create a new heartbeat by serializing a musician once.
+         *
+         * @param uuid       The UUID of the musician.
+         * @param instrument The instrument that the musician plays.
+         * @param binary     Whether to use the binary format.
+         */
+        private Heartbeat(UUID uuid, Instrument instrument, boolean binary) {
+            this.uuid = uuid;
+            this.instrument = instrument;
+            this.binary = binary;
+            final var template = new Musician(uuid, instruments.get(instrument), 0);
+            if (binary) {
+                this.bytes = template.toBinary(instrument);
+                this.timestampOffset = bytes.length - Long.BYTES;
+            } else {
+                // Serialize with a zero timestamp and cut the JSON before the zero.
+                final byte[] json = template.toBytes();
+                this.timestampOffset = json.length - 2;
+                this.bytes = Arrays.copyOf(json, timestampOffset + MAX_DIGITS + 1);
+            }
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        /**
+         * @return The array that backs the payload, to be wrapped once in a datagram packet.
+         */
+        private byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * Write a timestamp into the payload.
+         *
+         * @param timestamp The timestamp, in milliseconds since the epoch.
+         * @return The buffer that holds the payload, from position zero to the end of the payload.
+         */
+        private ByteBuffer encode(long timestamp) {
+            this.timestamp = timestamp;
+            buffer.clear();
+            if (binary) {
+                buffer.putLong(timestampOffset, timestamp);
+                return buffer;
+            }
+            // Write the digits backwards, then close the object.
+            int end = timestampOffset + digits(timestamp);
+            long value = timestamp;
+            for (int i = end - 1; i >= timestampOffset; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            bytes[end] = '}';
+            return buffer.limit(end + 1);
+        }
+
+        /**
+         * Count the decimal digits of a non-negative number.
+         */
+        private static int digits(long value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+
+        /**
+         * Describe the last sent heartbeat like the Musician record does.
+         */
+        @Override
+        public String toString() {
+            return "Musician[uuid=" + uuid + ", sound=" + instruments.get(instrument) + ", timestamp=" + timestamp + "]";
+        }
+    }
+
+    /**
+     * The instrument that a musician plays. The order must match the auditor's, as the binary format sends the ordinal.
      */
     private enum Instrument {
         piano, trumpet, flute, violin, drum
@@ -98,17 +435,26 @@ public class Main {
      */
     private record Musician(UUID uuid, String sound, long timestamp) {
         /**
-         * Create a new musician with the current timestamp.
+         * Convert the musician to a binary JSON string.
          */
-        public Musician(UUID uuid, Instrument instrument) {
-            this(uuid, instruments.get(instrument), System.currentTimeMillis());
+        public byte[] toBytes() {
+            return gson.toJson(this).getBytes(UTF_8);
         }
 
         /**
-         * Convert the musician to a binary JSON string.
+         * Convert the musician to the compact binary format. All multibyte values are big-endian.
+         *
+         * @param instrument The instrument that the musician plays, sent as its ordinal instead of the sound.
          */
-        public byte[] toBytes() {
-            return gson.toJson(this).getBytes(UTF_8);
+        public byte[] toBinary(Instrument instrument) {
+            return ByteBuffer.allocate(BINARY_SIZE)
+                    .put(BINARY_MAGIC)
+                    .put(BINARY_VERSION)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .put((byte) instrument.ordinal())
+                    .putLong(timestamp)
+                    .array();
         }
     }
 }